@@ -15,6 +15,7 @@
  */
 package org.springframework.samples.petclinic.owner;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.samples.petclinic.visit.VisitRepository;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -24,10 +25,14 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.InitBinder;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 
 import javax.validation.Valid;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -41,15 +46,29 @@ class OwnerController {
 
 	private static final String VIEWS_OWNER_CREATE_OR_UPDATE_FORM = "owners/createOrUpdateOwnerForm";
 
+	// owners listed per page when searching with the last name index
+	static final int OWNERS_PAGE_SIZE = 50;
+
 	private final OwnerRepository owners;
 
 	private VisitRepository visits;
 
+	private OwnerLastNameIndex lastNameIndex;
+
 	public OwnerController(OwnerRepository clinicService, VisitRepository visits) {
 		this.owners = clinicService;
 		this.visits = visits;
 	}
 
+	/**
+	 * Searches owners by last name in the index instead of the data store, when it is
+	 * enabled.
+	 */
+	@Autowired(required = false)
+	public void setLastNameIndex(OwnerLastNameIndex lastNameIndex) {
+		this.lastNameIndex = lastNameIndex;
+	}
+
 	@InitBinder
 	public void setAllowedFields(WebDataBinder dataBinder) {
 		dataBinder.setDisallowedFields("id");
@@ -80,13 +99,18 @@ class OwnerController {
 	}
 
 	@GetMapping("/owners")
-	public String processFindForm(Owner owner, BindingResult result, Map<String, Object> model) {
+	public String processFindForm(Owner owner, BindingResult result, Map<String, Object> model,
+			@RequestParam(name = "page", defaultValue = "1") int page) {
 
 		// allow parameterless GET request for /owners to return all records
 		if (owner.getLastName() == null) {
 			owner.setLastName(""); // empty string signifies broadest possible search
 		}
 
+		if (this.lastNameIndex != null) {
+			return processFindFormWithIndex(owner, page, result, model);
+		}
+
 		// find owners by last name
 		Collection<Owner> results = this.owners.findByLastName(owner.getLastName());
 		if (results.isEmpty()) {
@@ -106,6 +130,46 @@ class OwnerController {
 		}
 	}
 
+	/**
+	 * Finds the owners in the last name index and loads only the owners of the page shown,
+	 * so the number of ids queried for stays bounded however many owners match.
+	 */
+	private String processFindFormWithIndex(Owner owner, int page, BindingResult result, Map<String, Object> model) {
+		// the count and the page come from the same snapshot of the index, so they agree
+		OwnerLastNameIndex.Matches matches = this.lastNameIndex.find(owner.getLastName());
+		int count = matches.count();
+		int totalPages = (count + OWNERS_PAGE_SIZE - 1) / OWNERS_PAGE_SIZE;
+		int currentPage = Math.max(1, Math.min(page, totalPages));
+		List<Integer> ids = matches.ids((currentPage - 1) * OWNERS_PAGE_SIZE, OWNERS_PAGE_SIZE);
+		if (ids.isEmpty()) {
+			// no owners found
+			result.rejectValue("lastName", "notFound", "not found");
+			return "owners/findOwners";
+		}
+		else if (count == 1) {
+			// 1 owner found, it is loaded on the page redirected to
+			return "redirect:/owners/" + ids.get(0);
+		}
+		else {
+			// multiple owners found, load those of the page, in the order of the index
+			Map<Integer, Owner> found = new HashMap<>();
+			for (Owner selection : this.owners.findByIdIn(ids)) {
+				found.put(selection.getId(), selection);
+			}
+			List<Owner> selections = new ArrayList<>(found.size());
+			for (Integer id : ids) {
+				if (found.containsKey(id)) {
+					selections.add(found.get(id));
+				}
+			}
+			model.put("selections", selections);
+			model.put("currentPage", currentPage);
+			model.put("totalPages", totalPages);
+			model.put("totalOwners", count);
+			return "owners/ownersList";
+		}
+	}
+
 	@GetMapping("/owners/{ownerId}/edit")
 	public String initUpdateOwnerForm(@PathVariable("ownerId") int ownerId, Model model) {
 		Owner owner = this.owners.findById(ownerId);
@@ -0,0 +1,417 @@
+package org.springframework.samples.petclinic.owner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An in-memory index of the last names of all owners, so searching owners by the start of
+ * their last name needs no query. The search ignores case.
+ * <p>
+ * The index is an immutable snapshot of the (lower case last name, owner id) pairs of all
+ * owners in sorted arrays, in which the owners whose last name starts with a prefix are
+ * one range found by two binary searches. Their number is the difference of the two
+ * bounds, and a page of them starts at the lower bound plus the offset, so neither walks
+ * the matching owners. Owners indexed or renamed since the arrays were sorted are kept in
+ * two small sorted arrays of added and removed pairs, which are merged into the large
+ * ones once they hold {@value #MERGE_THRESHOLD} pairs.
+ * <p>
+ * The index is filled from the ids and last names of all owners on startup. Owners saved
+ * later are indexed by {@link SavedOwnerListener}, a JPA entity listener of
+ * {@link Owner}, whoever saves them, once their transaction commits. Owners written to
+ * the database other than through JPA, such as by SQL scripts after startup, are only
+ * indexed by {@link #rebuild()}. Every change publishes a new snapshot at once, so
+ * searches do not lock and see each owner exactly once, also while the index is rebuilt.
+ * <p>
+ * It is enabled with {@code petclinic.owners.last-name-index.enabled=true}.
+ */
+@Component
+@ConditionalOnProperty(name = "petclinic.owners.last-name-index.enabled", havingValue = "true")
+public class OwnerLastNameIndex {
+
+	private final static Logger log = LoggerFactory.getLogger(OwnerLastNameIndex.class);
+
+	static final int MERGE_THRESHOLD = 1024;
+
+	private final OwnerRepository owners;
+
+	private volatile Snapshot snapshot = new Snapshot(SortedPairs.EMPTY, SortedPairs.EMPTY, SortedPairs.EMPTY);
+
+	// the indexed last name of each owner, to find its pair when the owner is renamed,
+	// only used while holding the lock
+	private Map<Integer, String> lastNames = new HashMap<>();
+
+	public OwnerLastNameIndex(OwnerRepository owners) {
+		this.owners = owners;
+	}
+
+	/**
+	 * Fills the index with the last names of all owners in the data store. Searches keep
+	 * using the previous snapshot until the new one is complete.
+	 */
+	@PostConstruct
+	public synchronized void rebuild() {
+		long start = System.nanoTime();
+		List<OwnerRepository.LastName> all = owners.findAllLastNames();
+		Map<Integer, String> names = new HashMap<>(all.size() * 4 / 3 + 1);
+		for (OwnerRepository.LastName owner : all) {
+			names.put(owner.getId(), normalize(owner.getLastName()));
+		}
+		this.lastNames = names;
+		this.snapshot = new Snapshot(SortedPairs.of(names), SortedPairs.EMPTY, SortedPairs.EMPTY);
+		log.info("Indexed the last names of {} owners in {} ms", names.size(),
+				(System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Indexes the last name of a saved owner, replacing the one indexed before.
+	 */
+	public synchronized void update(Owner owner) {
+		Integer id = owner.getId();
+		if (id == null) {
+			return;
+		}
+		String name = normalize(owner.getLastName());
+		String previous = lastNames.put(id, name);
+		if (name.equals(previous)) {
+			return;
+		}
+		// the new pair is added and the old one removed in the same snapshot
+		Snapshot changed = snapshot.with(name, id);
+		if (previous != null) {
+			changed = changed.without(previous, id);
+		}
+		if (changed.added.size() + changed.removed.size() >= MERGE_THRESHOLD) {
+			changed = changed.merged();
+		}
+		snapshot = changed;
+	}
+
+	/**
+	 * @return the owners whose last name starts with the prefix, ignoring case, as they
+	 * are indexed now
+	 */
+	public Matches find(String prefix) {
+		return new Matches(snapshot, normalize(prefix));
+	}
+
+	/**
+	 * @see Matches#ids(int, int)
+	 */
+	public List<Integer> findIds(String prefix, int offset, int limit) {
+		return find(prefix).ids(offset, limit);
+	}
+
+	/**
+	 * @see Matches#count()
+	 */
+	public int count(String prefix) {
+		return find(prefix).count();
+	}
+
+	private static String normalize(String lastName) {
+		return lastName == null ? "" : lastName.toLowerCase(Locale.ROOT);
+	}
+
+	private static int compare(String lastName, int id, String otherLastName, int otherId) {
+		int order = lastName.compareTo(otherLastName);
+		return order != 0 ? order : Integer.compare(id, otherId);
+	}
+
+	/**
+	 * The owners whose last name starts with a prefix in one snapshot of the index, so
+	 * their count and their pages agree with each other.
+	 */
+	public static final class Matches {
+
+		private final Snapshot snapshot;
+
+		private final int baseFrom, baseTo, addedFrom, addedTo, removedFrom, removedTo;
+
+		Matches(Snapshot snapshot, String prefix) {
+			this.snapshot = snapshot;
+			// every name that starts with the prefix sorts before the prefix followed by
+			// the largest char
+			String end = prefix + Character.MAX_VALUE;
+			this.baseFrom = snapshot.base.lowerBound(prefix);
+			this.baseTo = snapshot.base.lowerBound(end);
+			this.addedFrom = snapshot.added.lowerBound(prefix);
+			this.addedTo = snapshot.added.lowerBound(end);
+			this.removedFrom = snapshot.removed.lowerBound(prefix);
+			this.removedTo = snapshot.removed.lowerBound(end);
+		}
+
+		/**
+		 * @return the number of matching owners
+		 */
+		public int count() {
+			return baseTo - baseFrom + addedTo - addedFrom - (removedTo - removedFrom);
+		}
+
+		/**
+		 * Jumps over the owners before the page in runs of the sorted arrays, stopping
+		 * only at the pairs added or removed since they were sorted.
+		 * @return the ids of at most {@code limit} matching owners, ordered by last name
+		 * and then by id, skipping the first {@code offset} of them
+		 */
+		public List<Integer> ids(int offset, int limit) {
+			SortedPairs base = snapshot.base;
+			SortedPairs added = snapshot.added;
+			SortedPairs removed = snapshot.removed;
+			List<Integer> ids = new ArrayList<>(Math.max(0, Math.min(limit, count() - offset)));
+			int skip = offset;
+			int b = baseFrom, a = addedFrom, r = removedFrom;
+			while (ids.size() < limit && (b < baseTo || a < addedTo)) {
+				// the base pairs before the next added or removed pair are all matches
+				int run = baseTo;
+				if (a < addedTo) {
+					run = base.lowerBound(added.names[a], added.ids[a], b, run);
+				}
+				if (r < removedTo) {
+					run = base.lowerBound(removed.names[r], removed.ids[r], b, run);
+				}
+				if (b < run) {
+					int skipped = Math.min(skip, run - b);
+					b += skipped;
+					skip -= skipped;
+					while (b < run && ids.size() < limit) {
+						ids.add(base.ids[b++]);
+					}
+				}
+				else if (a < addedTo && (b == baseTo || base.compareTo(b, added, a) > 0)) {
+					if (skip > 0) {
+						skip--;
+					}
+					else {
+						ids.add(added.ids[a]);
+					}
+					a++;
+				}
+				else {
+					// base[b] is the removed pair
+					b++;
+					r++;
+				}
+			}
+			return ids;
+		}
+
+	}
+
+	/**
+	 * The pairs of the index: the sorted base, and the pairs added to and removed from it
+	 * since. A removed pair is always one of the base, an added one never is.
+	 */
+	private static final class Snapshot {
+
+		final SortedPairs base;
+
+		final SortedPairs added;
+
+		final SortedPairs removed;
+
+		Snapshot(SortedPairs base, SortedPairs added, SortedPairs removed) {
+			this.base = base;
+			this.added = added;
+			this.removed = removed;
+		}
+
+		Snapshot with(String name, int id) {
+			if (removed.contains(name, id)) {
+				return new Snapshot(base, added, removed.without(name, id));
+			}
+			if (base.contains(name, id)) {
+				return this;
+			}
+			return new Snapshot(base, added.with(name, id), removed);
+		}
+
+		Snapshot without(String name, int id) {
+			if (added.contains(name, id)) {
+				return new Snapshot(base, added.without(name, id), removed);
+			}
+			if (!base.contains(name, id)) {
+				return this;
+			}
+			return new Snapshot(base, added, removed.with(name, id));
+		}
+
+		Snapshot merged() {
+			int size = base.size() + added.size() - removed.size();
+			String[] names = new String[size];
+			int[] ids = new int[size];
+			int i = 0, b = 0, a = 0, r = 0;
+			while (b < base.size() || a < added.size()) {
+				if (b < base.size() && (a == added.size() || base.compareTo(b, added, a) < 0)) {
+					if (r < removed.size() && base.compareTo(b, removed, r) == 0) {
+						r++;
+					}
+					else {
+						names[i] = base.names[b];
+						ids[i++] = base.ids[b];
+					}
+					b++;
+				}
+				else {
+					names[i] = added.names[a];
+					ids[i++] = added.ids[a++];
+				}
+			}
+			return new Snapshot(new SortedPairs(names, ids), SortedPairs.EMPTY, SortedPairs.EMPTY);
+		}
+
+	}
+
+	/**
+	 * Immutable (last name, id) pairs in parallel arrays, sorted by last name and then by
+	 * id.
+	 */
+	private static final class SortedPairs {
+
+		static final SortedPairs EMPTY = new SortedPairs(new String[0], new int[0]);
+
+		final String[] names;
+
+		final int[] ids;
+
+		SortedPairs(String[] names, int[] ids) {
+			this.names = names;
+			this.ids = ids;
+		}
+
+		static SortedPairs of(Map<Integer, String> lastNames) {
+			Integer[] order = lastNames.keySet().toArray(new Integer[0]);
+			Arrays.sort(order, (id, other) -> compare(lastNames.get(id), id, lastNames.get(other), other));
+			String[] names = new String[order.length];
+			int[] ids = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				names[i] = lastNames.get(order[i]);
+				ids[i] = order[i];
+			}
+			return new SortedPairs(names, ids);
+		}
+
+		int size() {
+			return ids.length;
+		}
+
+		/**
+		 * @return the index of the first pair whose last name is not before the given one
+		 */
+		int lowerBound(String name) {
+			int low = 0, high = names.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (names[middle].compareTo(name) < 0) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * @return the index of the first pair in {@code [from, to)} that is not before the
+		 * given one, or {@code to}
+		 */
+		int lowerBound(String name, int id, int from, int to) {
+			int low = from, high = to;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (compare(names[middle], ids[middle], name, id) < 0) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		int compareTo(int index, SortedPairs other, int otherIndex) {
+			return compare(names[index], ids[index], other.names[otherIndex], other.ids[otherIndex]);
+		}
+
+		boolean contains(String name, int id) {
+			int index = lowerBound(name, id, 0, ids.length);
+			return index < ids.length && ids[index] == id && names[index].equals(name);
+		}
+
+		SortedPairs with(String name, int id) {
+			int index = lowerBound(name, id, 0, ids.length);
+			String[] newNames = new String[names.length + 1];
+			int[] newIds = new int[ids.length + 1];
+			System.arraycopy(names, 0, newNames, 0, index);
+			System.arraycopy(ids, 0, newIds, 0, index);
+			newNames[index] = name;
+			newIds[index] = id;
+			System.arraycopy(names, index, newNames, index + 1, names.length - index);
+			System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+			return new SortedPairs(newNames, newIds);
+		}
+
+		SortedPairs without(String name, int id) {
+			int index = lowerBound(name, id, 0, ids.length);
+			String[] newNames = new String[names.length - 1];
+			int[] newIds = new int[ids.length - 1];
+			System.arraycopy(names, 0, newNames, 0, index);
+			System.arraycopy(ids, 0, newIds, 0, index);
+			System.arraycopy(names, index + 1, newNames, index, newNames.length - index);
+			System.arraycopy(ids, index + 1, newIds, index, newIds.length - index);
+			return new SortedPairs(newNames, newIds);
+		}
+
+	}
+
+	/**
+	 * Indexes every owner that JPA inserts or updates, after the transaction that saved it
+	 * commits, or right away outside of a transaction. Created by Hibernate through the
+	 * Spring bean container, it does nothing when the index is disabled.
+	 */
+	public static class SavedOwnerListener {
+
+		private final ObjectProvider<OwnerLastNameIndex> index;
+
+		public SavedOwnerListener(ObjectProvider<OwnerLastNameIndex> index) {
+			this.index = index;
+		}
+
+		@PostPersist
+		@PostUpdate
+		public void saved(Owner owner) {
+			OwnerLastNameIndex lastNameIndex = index.getIfAvailable();
+			if (lastNameIndex == null) {
+				return;
+			}
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+					@Override
+					public void afterCommit() {
+						lastNameIndex.update(owner);
+					}
+				});
+			}
+			else {
+				lastNameIndex.update(owner);
+			}
+		}
+
+	}
+
+}
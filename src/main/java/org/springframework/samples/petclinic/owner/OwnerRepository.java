@@ -16,6 +16,7 @@
 package org.springframework.samples.petclinic.owner;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.Repository;
@@ -55,10 +56,38 @@ public interface OwnerRepository extends Repository<Owner, Integer> {
 	@Transactional(readOnly = true)
 	Owner findById(@Param("id") Integer id);
 
+	/**
+	 * Retrieve the {@link Owner}s with the given ids from the data store in a single query.
+	 * @param ids the ids to search for
+	 * @return the {@link Owner}s found, in no particular order
+	 */
+	@Query("SELECT DISTINCT owner FROM Owner owner left join fetch owner.pets WHERE owner.id IN :ids")
+	@Transactional(readOnly = true)
+	List<Owner> findByIdIn(@Param("ids") Collection<Integer> ids);
+
+	/**
+	 * Retrieve the id and last name of every {@link Owner}, without loading the owners.
+	 * @return the ids and last names
+	 */
+	@Query("SELECT owner.id AS id, owner.lastName AS lastName FROM Owner owner")
+	@Transactional(readOnly = true)
+	List<LastName> findAllLastNames();
+
 	/**
 	 * Save an {@link Owner} to the data store, either inserting or updating it.
 	 * @param owner the {@link Owner} to save
 	 */
 	void save(Owner owner);
 
+	/**
+	 * The id and last name of an {@link Owner}.
+	 */
+	interface LastName {
+
+		Integer getId();
+
+		String getLastName();
+
+	}
+
 }
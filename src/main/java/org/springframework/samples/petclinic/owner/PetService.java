@@ -2,10 +2,18 @@ package org.springframework.samples.petclinic.owner;
 
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.samples.petclinic.utility.IdentityMap;
 import org.springframework.samples.petclinic.utility.PetTimedCache;
+import org.springframework.samples.petclinic.utility.RequestIdentityMaps;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+/**
+ * Finds and saves owners and pets. While a web request is handled, owners and pets are
+ * looked up in the {@link RequestIdentityMaps} of that request first, so each of them is
+ * loaded at most once per request, also when the controller asks for the owner and then
+ * for one of its pets.
+ */
 @Service
 public class PetService {
 
@@ -25,7 +33,17 @@ public class PetService {
 
 	public Owner findOwner(int ownerId) {
 		log.info("find owner {}", ownerId);
-		return this.owners.findById(ownerId);
+		IdentityMap<Owner> requestOwners = RequestIdentityMaps.of(Owner.class);
+		Owner owner = requestOwners == null ? null : requestOwners.get(ownerId);
+		if (owner == null) {
+			owner = this.owners.findById(ownerId);
+			if (owner != null && requestOwners != null) {
+				requestOwners.add(owner);
+				// the pets were fetched together with the owner
+				owner.getPets().forEach(this::rememberPet);
+			}
+		}
+		return owner;
 	}
 
 	public Pet newPet(Owner owner) {
@@ -37,12 +55,37 @@ public class PetService {
 
 	public Pet findPet(int petId) {
 		log.info("find pet by id {}", petId);
-		return this.pets.get(petId);
+		IdentityMap<Pet> requestPets = RequestIdentityMaps.of(Pet.class);
+		Pet pet = requestPets == null ? null : requestPets.get(petId);
+		if (pet == null) {
+			pet = this.pets.get(petId);
+			rememberPet(pet);
+		}
+		return pet;
 	}
 
 	public void savePet(Pet pet, Owner owner) {
 		log.info("save pet {}", pet.getId());
 		owner.addPet(pet);
 		this.pets.save(pet);
+		IdentityMap<Pet> requestPets = RequestIdentityMaps.of(Pet.class);
+		if (requestPets != null && pet.getId() != null) {
+			// later lookups in this request see the pet as it was saved
+			requestPets.add(pet);
+		}
+	}
+
+	/**
+	 * Keeps the pet for the rest of the request, unless an instance with the same id was
+	 * loaded before.
+	 */
+	private void rememberPet(Pet pet) {
+		IdentityMap<Pet> requestPets = RequestIdentityMaps.of(Pet.class);
+		if (pet == null || pet.getId() == null || requestPets == null) {
+			return;
+		}
+		if (!requestPets.contains(pet)) {
+			requestPets.add(pet);
+		}
 	}
 }
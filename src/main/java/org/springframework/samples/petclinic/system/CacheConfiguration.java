@@ -16,12 +16,27 @@
 
 package org.springframework.samples.petclinic.system;
 
+import java.time.Duration;
+
+import javax.cache.CacheManager;
 import javax.cache.configuration.MutableConfiguration;
 
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.ExpiryPolicyBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.jsr107.Eh107Configuration;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.cache.JCacheManagerCustomizer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.utility.JCachePetCacheTier;
+import org.springframework.samples.petclinic.utility.OffHeapPetTier;
+import org.springframework.samples.petclinic.utility.PetCacheTier;
 
 /**
  * Cache configuration intended for caches providing the JCache API. This configuration
@@ -32,6 +47,12 @@ import org.springframework.context.annotation.Configuration;
 @EnableCaching
 class CacheConfiguration {
 
+	private static final String EHCACHE_SECOND_TIER = "${petclinic.cache.pets.l2.enabled:false}"
+			+ " and '${petclinic.cache.pets.l2.store:ehcache}' == 'ehcache'";
+
+	private static final String DIRECT_SECOND_TIER = "${petclinic.cache.pets.l2.enabled:false}"
+			+ " and '${petclinic.cache.pets.l2.store:ehcache}' == 'direct'";
+
 	@Bean
 	public JCacheManagerCustomizer petclinicCacheConfigurationCustomizer() {
 		return cm -> {
@@ -39,6 +60,43 @@ class CacheConfiguration {
 		};
 	}
 
+	/**
+	 * Creates the {@code pets} cache used as the second tier of the pet cache. Unlike the
+	 * {@code vets} cache it is configured with the Ehcache API, since its heap size, its
+	 * optional off-heap store and its expiry can not be expressed with JCache alone.
+	 */
+	@Bean
+	@ConditionalOnExpression(EHCACHE_SECOND_TIER)
+	public JCacheManagerCustomizer petCacheSecondTierCustomizer(
+			@Value("${petclinic.cache.pets.l2.heap-entries:100000}") long heapEntries,
+			@Value("${petclinic.cache.pets.l2.offheap-mb:0}") long offHeapMegabytes,
+			@Value("${petclinic.cache.pets.l2.expiry-millis:600000}") long expiryInMillis) {
+		ResourcePoolsBuilder resourcePools = ResourcePoolsBuilder.newResourcePoolsBuilder().heap(heapEntries,
+				EntryUnit.ENTRIES);
+		if (offHeapMegabytes > 0) {
+			resourcePools = resourcePools.offheap(offHeapMegabytes, MemoryUnit.MB);
+		}
+		CacheConfigurationBuilder<Integer, Pet> configuration = CacheConfigurationBuilder
+				.newCacheConfigurationBuilder(Integer.class, Pet.class, resourcePools)
+				.withExpiry(ExpiryPolicyBuilder.timeToLiveExpiration(Duration.ofMillis(expiryInMillis)));
+		return cm -> cm.createCache("pets", Eh107Configuration.fromEhcacheCacheConfiguration(configuration));
+	}
+
+	@Bean
+	@ConditionalOnExpression(EHCACHE_SECOND_TIER)
+	public PetCacheTier petCacheSecondTier(CacheManager cacheManager) {
+		return new JCachePetCacheTier(cacheManager.getCache("pets", Integer.class, Pet.class));
+	}
+
+	/**
+	 * Keeps the second tier of the pet cache in direct memory slabs of its own instead.
+	 */
+	@Bean
+	@ConditionalOnExpression(DIRECT_SECOND_TIER)
+	public PetCacheTier petCacheOffHeapTier(@Value("${petclinic.cache.pets.l2.direct-mb:64}") long directMegabytes) {
+		return new OffHeapPetTier(directMegabytes << 20);
+	}
+
 	/**
 	 * Create a simple configuration that enable statistics via the JCache programmatic
 	 * configuration API.
@@ -0,0 +1,208 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Makes instances of a class with its constructor, passing the instances a {@link MyDI}
+ * provides for the constructor parameters.
+ * <p>
+ * The constructor is the only public one, else the one annotated with {@link Autowired},
+ * else the public one without parameters, as Spring picks it. It is bound once to a class
+ * generated by {@link LambdaMetafactory}, so calling it costs about as much as
+ * {@code new}, while {@link Constructor#newInstance} checks access and copies the
+ * arguments on every call. Constructors with more than two parameters are called through
+ * a {@link MethodHandle} that takes the arguments as an array. The bindings of the
+ * parameters are looked up once per snapshot of the container's bindings, not once per
+ * call.
+ */
+final class AutowiredConstructor implements Callable<Object> {
+
+	private final MyDI container;
+
+	private final Class<?> type;
+
+	private final Class<?>[] parameterTypes;
+
+	private final Supplier<Object> noArguments;
+
+	private final Function<Object, Object> oneArgument;
+
+	private final BiFunction<Object, Object, Object> twoArguments;
+
+	private final MethodHandle arguments;
+
+	private volatile ResolvedParameters resolved;
+
+	/**
+	 * @throws IllegalArgumentException if the class has no constructor to autowire or the
+	 * constructor can not be called from here
+	 */
+	@SuppressWarnings("unchecked")
+	AutowiredConstructor(MyDI container, Class<?> type) {
+		this.container = container;
+		this.type = type;
+		Constructor<?> constructor = autowiredConstructor(type);
+		this.parameterTypes = constructor.getParameterTypes();
+		for (Class<?> parameterType : parameterTypes) {
+			if (parameterType.isPrimitive()) {
+				throw new IllegalArgumentException("Can not autowire the " + parameterType + " parameter of "
+						+ type.getName() + ", only objects are provided");
+			}
+		}
+		MethodHandle handle;
+		try {
+			handle = MethodHandles.lookup().unreflectConstructor(constructor);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("The constructor of " + type.getName() + " is not accessible", e);
+		}
+		switch (parameterTypes.length) {
+		case 0:
+			this.noArguments = bind(handle, Supplier.class, "get");
+			this.oneArgument = null;
+			this.twoArguments = null;
+			this.arguments = null;
+			break;
+		case 1:
+			this.noArguments = null;
+			this.oneArgument = bind(handle, Function.class, "apply");
+			this.twoArguments = null;
+			this.arguments = null;
+			break;
+		case 2:
+			this.noArguments = null;
+			this.oneArgument = null;
+			this.twoArguments = bind(handle, BiFunction.class, "apply");
+			this.arguments = null;
+			break;
+		default:
+			this.noArguments = null;
+			this.oneArgument = null;
+			this.twoArguments = null;
+			this.arguments = handle.asSpreader(Object[].class, parameterTypes.length)
+				.asType(MethodType.methodType(Object.class, Object[].class));
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException if the container provides no instance for a parameter
+	 */
+	@Override
+	public Object call() throws Exception {
+		if (parameterTypes.length == 0) {
+			return noArguments.get();
+		}
+		MyDI.Binding[] parameters = parameterBindings();
+		switch (parameters.length) {
+		case 1:
+			return oneArgument.apply(parameters[0].get());
+		case 2:
+			return twoArguments.apply(parameters[0].get(), parameters[1].get());
+		default:
+			Object[] values = new Object[parameters.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = parameters[i].get();
+			}
+			try {
+				return (Object) arguments.invokeExact(values);
+			} catch (Exception | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new UndeclaredThrowableException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return the types the constructor takes, in order
+	 */
+	Class<?>[] dependencies() {
+		return parameterTypes.clone();
+	}
+
+	private MyDI.Binding[] parameterBindings() {
+		Map<Class<?>, MyDI.Binding> bindings = container.bindings();
+		ResolvedParameters current = resolved;
+		if (current == null || current.bindings != bindings) {
+			MyDI.Binding[] parameters = new MyDI.Binding[parameterTypes.length];
+			for (int i = 0; i < parameters.length; i++) {
+				parameters[i] = bindings.get(parameterTypes[i]);
+				if (parameters[i] == null) {
+					throw new IllegalStateException("No instance of " + parameterTypes[i].getName()
+							+ " is provided for the constructor of " + type.getName());
+				}
+			}
+			current = new ResolvedParameters(bindings, parameters);
+			resolved = current;
+		}
+		return current.parameters;
+	}
+
+	private static Constructor<?> autowiredConstructor(Class<?> type) {
+		if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+			throw new IllegalArgumentException(type.getName() + " can not be instantiated");
+		}
+		Constructor<?>[] constructors = type.getConstructors();
+		if (constructors.length == 1) {
+			return constructors[0];
+		}
+		Constructor<?> noArguments = null;
+		for (Constructor<?> constructor : constructors) {
+			if (constructor.isAnnotationPresent(Autowired.class)) {
+				return constructor;
+			}
+			if (constructor.getParameterCount() == 0) {
+				noArguments = constructor;
+			}
+		}
+		if (noArguments == null) {
+			throw new IllegalArgumentException(
+					type.getName() + " has no public constructor to autowire, annotate one with @Autowired");
+		}
+		return noArguments;
+	}
+
+	/**
+	 * @return an instance of the functional interface that calls the constructor
+	 */
+	private static <T> T bind(MethodHandle constructor, Class<T> functionType, String method) {
+		MethodType erased = constructor.type().erase();
+		try {
+			CallSite site = LambdaMetafactory.metafactory(MethodHandles.lookup(), method,
+					MethodType.methodType(functionType), erased, constructor, constructor.type());
+			return functionType.cast(site.getTarget().invoke());
+		} catch (Throwable e) {
+			throw new IllegalArgumentException("Could not bind the constructor of " + constructor.type().returnType().getName(), e);
+		}
+	}
+
+	/**
+	 * The bindings of the constructor parameters in one snapshot of the container's bindings.
+	 */
+	private static final class ResolvedParameters {
+
+		final Map<Class<?>, MyDI.Binding> bindings;
+
+		final MyDI.Binding[] parameters;
+
+		ResolvedParameters(Map<Class<?>, MyDI.Binding> bindings, MyDI.Binding[] parameters) {
+			this.bindings = bindings;
+			this.parameters = parameters;
+		}
+
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.springframework.samples.petclinic.model.BaseEntity;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe counterpart of {@link IdentityMap} that holds at most one entity per id,
+ * so threads sharing it can agree on a single instance of each entity.
+ * <p>
+ * It is backed by a {@link ConcurrentHashMap} keyed by id: reads never lock, writes to
+ * different ids rarely contend, and every single-entity operation takes effect atomically
+ * at one point in time. In particular {@link #add(BaseEntity)} replaces by id, and
+ * {@link #putIfAbsent(BaseEntity)} returns the instance another thread registered first.
+ * Iteration is weakly consistent instead of fail-fast, it never throws
+ * {@link java.util.ConcurrentModificationException}. Bulk operations are not atomic.
+ * Entities without an id can not be told apart and are rejected.
+ */
+public class ConcurrentIdentityMap<Entity extends BaseEntity> extends AbstractCollection<Entity> {
+
+	private final ConcurrentHashMap<Integer, Entity> entities = new ConcurrentHashMap<>();
+
+	@Override
+	public int size() {
+		return entities.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return entities.isEmpty();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(o instanceof BaseEntity) {
+			Integer id = ((BaseEntity) o).getId();
+			return id != null && entities.containsKey(id);
+		}
+		return false;
+	}
+
+	/**
+	 * @return the entity with the given id, or {@code null} if there is none
+	 */
+	public Entity get(Integer id) {
+		return entities.get(id);
+	}
+
+	/**
+	 * Adds the entity, replacing the entity with the same id if there is one.
+	 * @throws IllegalArgumentException if the entity has no id
+	 */
+	@Override
+	public boolean add(Entity entity) {
+		entities.put(idOf(entity), entity);
+		return true;
+	}
+
+	/**
+	 * Adds the entity unless there is one with the same id already.
+	 * @return the entity present before, or {@code null} if the given one was added
+	 * @throws IllegalArgumentException if the entity has no id
+	 */
+	public Entity putIfAbsent(Entity entity) {
+		return entities.putIfAbsent(idOf(entity), entity);
+	}
+
+	/**
+	 * Replaces the entity with the id of {@code replacement}, but only if that is still
+	 * {@code expected}.
+	 * @return whether the entity was replaced
+	 * @throws IllegalArgumentException if the ids of the entities differ or are missing
+	 */
+	public boolean replace(Entity expected, Entity replacement) {
+		Integer id = idOf(replacement);
+		if(!id.equals(expected.getId())) {
+			throw new IllegalArgumentException("Only an entity with the same id can be replaced");
+		}
+		return entities.replace(id, expected, replacement);
+	}
+
+	@Override
+	public boolean remove(Object object) {
+		if(object instanceof BaseEntity) {
+			Integer id = ((BaseEntity) object).getId();
+			return id != null && entities.remove(id) != null;
+		}
+		return false;
+	}
+
+	@Override
+	public Iterator<Entity> iterator() {
+		return entities.values().iterator();
+	}
+
+	@Override
+	public Spliterator<Entity> spliterator() {
+		return entities.values().spliterator();
+	}
+
+	@Override
+	public void clear() {
+		entities.clear();
+	}
+
+	private static Integer idOf(BaseEntity entity) {
+		Integer id = entity.getId();
+		if(id == null) {
+			throw new IllegalArgumentException("ConcurrentIdentityMap only holds entities with an id");
+		}
+		return id;
+	}
+}
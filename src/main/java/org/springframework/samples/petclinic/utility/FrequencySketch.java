@@ -0,0 +1,114 @@
+package org.springframework.samples.petclinic.utility;
+
+/**
+ * A probabilistic multi-set estimating how often a key was seen recently, used by
+ * {@link WindowTinyLfu} to decide whether a new entry is worth more than the one it
+ * would replace.
+ * <p>
+ * This is a count-min sketch with four 4-bit counters per key packed into a {@code long}
+ * table. Once the number of recorded increments reaches ten times the table capacity all
+ * counters are halved, so that the estimate follows the recent popularity of a key rather
+ * than its whole history. The table has a fixed size, so memory does not grow with the
+ * number of distinct keys seen.
+ * <p>
+ * This class is not thread-safe, callers must guard it with a lock.
+ */
+final class FrequencySketch {
+
+	private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L };
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	private long[] table;
+
+	private int tableMask;
+
+	private int sampleSize;
+
+	private int size;
+
+	FrequencySketch(long maximumSize) {
+		ensureCapacity(maximumSize);
+	}
+
+	/**
+	 * Resizes the sketch for a cache holding up to {@code maximumSize} entries. Previous
+	 * counts are discarded.
+	 */
+	void ensureCapacity(long maximumSize) {
+		int maximum = (int) Math.min(Math.max(maximumSize, 1), Integer.MAX_VALUE >>> 1);
+		table = new long[ceilingPowerOfTwo(maximum)];
+		tableMask = table.length - 1;
+		sampleSize = 10 * maximum > 0 ? 10 * maximum : Integer.MAX_VALUE;
+		size = 0;
+	}
+
+	/**
+	 * @return the estimated number of recent occurrences of the key, at most 15
+	 */
+	int frequency(int key) {
+		int hash = spread(key);
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records one occurrence of the key, aging all counters if the sample is full.
+	 */
+	void increment(int key) {
+		int hash = spread(key);
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && ++size == sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int index, int counter) {
+		int offset = counter << 2;
+		long mask = 0xfL << offset;
+		if ((table[index] & mask) != mask) {
+			table[index] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	private void reset() {
+		int odd = 0;
+		for (int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size >>> 1) - (odd >>> 2);
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEED[i]) * SEED[i];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	private static int ceilingPowerOfTwo(int x) {
+		return 1 << -Integer.numberOfLeadingZeros(x - 1);
+	}
+
+}
@@ -0,0 +1,364 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.springframework.samples.petclinic.model.BaseEntity;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of entity ids for set algebra over large numbers of entities.
+ * <p>
+ * Ids are grouped by their upper 16 bits, as in roaring bitmaps. Each group keeps its
+ * lower 16 bits either as a sorted array while it has at most {@value #ARRAY_LIMIT} of
+ * them, or as a bitmap of 65536 bits once it has more. Dense ranges of ids, which is what
+ * database generated ids look like, therefore take about one bit per id, and
+ * {@link #and(IdBitSet)}, {@link #andNot(IdBitSet)} and {@link #containsAll(IdBitSet)}
+ * work on whole words of 64 ids at a time instead of on single ids.
+ * <p>
+ * The sets are immutable once made, the operations return new sets.
+ */
+public final class IdBitSet {
+
+	private static final int ARRAY_LIMIT = 4096;
+
+	private static final int BITMAP_WORDS = 1 << 10;
+
+	// the upper 16 bits of the ids of each container, in ascending unsigned order
+	private char[] keys = new char[4];
+
+	private Container[] containers = new Container[4];
+
+	private int size;
+
+	private IdBitSet() {
+	}
+
+	/**
+	 * @return the ids of the entities in the collection, entities without an id are left out
+	 */
+	public static IdBitSet of(Collection<?> entities) {
+		if (entities instanceof IdentityMap) {
+			return ((IdentityMap<?>) entities).ids();
+		}
+		IdBitSet ids = new IdBitSet();
+		for (Object entity : entities) {
+			if (entity instanceof BaseEntity && ((BaseEntity) entity).getId() != null) {
+				ids.add(((BaseEntity) entity).getId());
+			}
+		}
+		return ids;
+	}
+
+	public static IdBitSet of(int... ids) {
+		IdBitSet set = new IdBitSet();
+		for (int id : ids) {
+			set.add(id);
+		}
+		return set;
+	}
+
+	/**
+	 * Adds the id while the set is being made, adding ids in ascending order is fastest.
+	 */
+	void add(int id) {
+		char key = (char) (id >>> 16);
+		int index = indexOf(key);
+		if (index < 0) {
+			index = -index - 1;
+			insert(index, key, new Container());
+		}
+		containers[index].add((char) id);
+	}
+
+	public boolean contains(int id) {
+		int index = indexOf((char) (id >>> 16));
+		return index >= 0 && containers[index].contains((char) id);
+	}
+
+	/**
+	 * @return whether every id of the other set is in this one
+	 */
+	public boolean containsAll(IdBitSet other) {
+		int index = 0;
+		for (int otherIndex = 0; otherIndex < other.size; otherIndex++) {
+			char key = other.keys[otherIndex];
+			while (index < size && keys[index] < key) {
+				index++;
+			}
+			if (index == size || keys[index] != key || !containers[index].containsAll(other.containers[otherIndex])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the ids in both sets
+	 */
+	public IdBitSet and(IdBitSet other) {
+		IdBitSet result = new IdBitSet();
+		int index = 0;
+		int otherIndex = 0;
+		while (index < size && otherIndex < other.size) {
+			char key = keys[index];
+			char otherKey = other.keys[otherIndex];
+			if (key < otherKey) {
+				index++;
+			} else if (key > otherKey) {
+				otherIndex++;
+			} else {
+				result.append(key, containers[index++].and(other.containers[otherIndex++]));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the ids in this set that are not in the other one
+	 */
+	public IdBitSet andNot(IdBitSet other) {
+		IdBitSet result = new IdBitSet();
+		int otherIndex = 0;
+		for (int index = 0; index < size; index++) {
+			char key = keys[index];
+			while (otherIndex < other.size && other.keys[otherIndex] < key) {
+				otherIndex++;
+			}
+			if (otherIndex < other.size && other.keys[otherIndex] == key) {
+				result.append(key, containers[index].andNot(other.containers[otherIndex]));
+			} else {
+				result.append(key, containers[index]);
+			}
+		}
+		return result;
+	}
+
+	public int cardinality() {
+		int cardinality = 0;
+		for (int index = 0; index < size; index++) {
+			cardinality += containers[index].cardinality;
+		}
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Passes every id to the action, ascending by their unsigned value, so negative ids
+	 * come last.
+	 */
+	public void forEach(IntConsumer action) {
+		for (int index = 0; index < size; index++) {
+			containers[index].forEach(keys[index] << 16, action);
+		}
+	}
+
+	private int indexOf(char key) {
+		// ids are mostly added in ascending order, check the last container first
+		if (size > 0 && keys[size - 1] == key) {
+			return size - 1;
+		}
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	// containers are shared between sets, which is safe as sets are not changed once made
+	private void append(char key, Container container) {
+		if (container != null) {
+			insert(size, key, container);
+		}
+	}
+
+	private void insert(int index, char key, Container container) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size - index);
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+
+	/**
+	 * The lower 16 bits of the ids that share their upper 16 bits, as a sorted array or,
+	 * when there are more than {@value #ARRAY_LIMIT}, as a bitmap.
+	 */
+	private static final class Container {
+
+		// null once the container is a bitmap
+		char[] values = new char[4];
+
+		// null while the container is an array
+		long[] bits;
+
+		int cardinality;
+
+		void add(char value) {
+			if (bits != null) {
+				long word = bits[value >>> 6];
+				long bit = 1L << value;
+				if ((word & bit) == 0) {
+					bits[value >>> 6] = word | bit;
+					cardinality++;
+				}
+				return;
+			}
+			int index = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1
+					: Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				return;
+			}
+			if (cardinality == ARRAY_LIMIT) {
+				toBitmap();
+				add(value);
+				return;
+			}
+			index = -index - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, cardinality * 2));
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality - index);
+			values[index] = value;
+			cardinality++;
+		}
+
+		boolean contains(char value) {
+			if (bits != null) {
+				return (bits[value >>> 6] & (1L << value)) != 0;
+			}
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		boolean containsAll(Container other) {
+			if (other.cardinality > cardinality) {
+				return false;
+			}
+			if (other.bits != null) {
+				// both are bitmaps, as an array holds fewer values than any bitmap
+				for (int word = 0; word < BITMAP_WORDS; word++) {
+					if ((other.bits[word] & ~bits[word]) != 0) {
+						return false;
+					}
+				}
+				return true;
+			}
+			for (int index = 0; index < other.cardinality; index++) {
+				if (!contains(other.values[index])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the values in both containers, or {@code null} if there are none
+		 */
+		Container and(Container other) {
+			if (bits != null && other.bits != null) {
+				long[] words = new long[BITMAP_WORDS];
+				for (int word = 0; word < BITMAP_WORDS; word++) {
+					words[word] = bits[word] & other.bits[word];
+				}
+				return ofBitmap(words);
+			}
+			Container array = bits == null ? this : other;
+			Container probed = array == this ? other : this;
+			Container result = new Container();
+			result.values = new char[array.cardinality];
+			for (int index = 0; index < array.cardinality; index++) {
+				if (probed.contains(array.values[index])) {
+					result.values[result.cardinality++] = array.values[index];
+				}
+			}
+			return result.cardinality == 0 ? null : result;
+		}
+
+		/**
+		 * @return the values of this container that are not in the other, or {@code null}
+		 * if there are none
+		 */
+		Container andNot(Container other) {
+			if (bits != null) {
+				long[] words = bits.clone();
+				if (other.bits != null) {
+					for (int word = 0; word < BITMAP_WORDS; word++) {
+						words[word] &= ~other.bits[word];
+					}
+				} else {
+					for (int index = 0; index < other.cardinality; index++) {
+						char value = other.values[index];
+						words[value >>> 6] &= ~(1L << value);
+					}
+				}
+				return ofBitmap(words);
+			}
+			Container result = new Container();
+			result.values = new char[cardinality];
+			for (int index = 0; index < cardinality; index++) {
+				if (!other.contains(values[index])) {
+					result.values[result.cardinality++] = values[index];
+				}
+			}
+			return result.cardinality == 0 ? null : result;
+		}
+
+		void forEach(int high, IntConsumer action) {
+			if (bits == null) {
+				for (int index = 0; index < cardinality; index++) {
+					action.accept(high | values[index]);
+				}
+				return;
+			}
+			for (int word = 0; word < BITMAP_WORDS; word++) {
+				long remaining = bits[word];
+				while (remaining != 0) {
+					action.accept(high | (word << 6) | Long.numberOfTrailingZeros(remaining));
+					remaining &= remaining - 1;
+				}
+			}
+		}
+
+		private void toBitmap() {
+			bits = new long[BITMAP_WORDS];
+			for (int index = 0; index < cardinality; index++) {
+				bits[values[index] >>> 6] |= 1L << values[index];
+			}
+			values = null;
+		}
+
+		/**
+		 * @return a container of the set bits, as an array if there are few, or
+		 * {@code null} if there are none
+		 */
+		private static Container ofBitmap(long[] words) {
+			Container container = new Container();
+			for (long word : words) {
+				container.cardinality += Long.bitCount(word);
+			}
+			if (container.cardinality == 0) {
+				return null;
+			}
+			if (container.cardinality > ARRAY_LIMIT) {
+				container.values = null;
+				container.bits = words;
+				return container;
+			}
+			container.values = new char[container.cardinality];
+			int index = 0;
+			for (int word = 0; word < BITMAP_WORDS; word++) {
+				long remaining = words[word];
+				while (remaining != 0) {
+					container.values[index++] = (char) ((word << 6) | Long.numberOfTrailingZeros(remaining));
+					remaining &= remaining - 1;
+				}
+			}
+			return container;
+		}
+
+	}
+
+}
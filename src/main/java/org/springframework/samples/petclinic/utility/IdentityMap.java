@@ -2,61 +2,158 @@ package org.springframework.samples.petclinic.utility;
 import org.springframework.samples.petclinic.model.BaseEntity;
 
 import java.util.*;
-import java.util.function.Supplier;
-import java.util.stream.Collector;
+import java.util.function.Consumer;
 
 /**
  * This is a utility class to provide a sortable map
  * for more information see https://docs.oracle.com/javase/8/docs/api/java/util/Collection.html
+ * <p>
+ * Entities are kept in a dense list and found through an index from id to their slot in
+ * that list, so add, replace, remove and contains take constant time. The index is an
+ * {@link IntLongHashMap} over primitive arrays, so it boxes no ids and allocates no
+ * object per entity; entities without an id yet share a separate slot. Adding an entity
+ * whose id is present already replaces the present one in its slot, and removing an
+ * entity moves the last entity into the freed slot. The order of the entities is
+ * therefore the order of adding them only until the first removal, and is the order of
+ * the last {@link #sort(Comparator)} until the next add or remove.
+ * <p>
+ * Iterators and spliterators walk the dense list and fail fast when the map is changed
+ * other than through them. Spliterators split the list in halves, so a
+ * {@link #parallelStream()} spreads large maps evenly over the fork join pool.
+ * <p>
+ * A map created with a comparator is sorted: it additionally keeps its entities in a
+ * tree ordered by the comparator, and by id among entities the comparator considers equal.
+ * Adding, replacing and removing then take logarithmic time, iteration follows that order
+ * and {@link #sortedView()} answers range queries without sorting. The compared properties
+ * of an entity must not change while it is in a sorted map, add a changed copy instead.
+ * <p>
+ * Set operations between maps, and {@link #retainAll(Collection)} and
+ * {@link #removeAll(Collection)} with large collections, go through the {@link IdBitSet}
+ * of the ids involved, so reconciling hundreds of thousands of entities takes
+ * milliseconds. Like {@link #contains(Object)} they compare entities by id.
  */
 public class IdentityMap<Entity extends BaseEntity> implements Collection<Entity> {
 
 	private ArrayList<Entity> entities = new ArrayList<>();
-	private Set<Integer> ids = new HashSet<>();
+	private IntLongHashMap slots = new IntLongHashMap(16);
+	// the slot of the entity whose id is null, there is at most one
+	private int nullIdSlot = -1;
+	// counts adds of new ids, removals and reorderings, for failing fast
+	private int modCount;
+	// the entities in comparator order, null unless the map is sorted
+	private final NavigableSet<Entity> ordered;
+	// the ids of the entities as of idsModCount, made when first asked for
+	private IdBitSet ids;
+	private int idsModCount;
+
+	public IdentityMap() {
+		this.ordered = null;
+	}
+
+	/**
+	 * Creates a sorted map that keeps its entities in the order of the comparator.
+	 */
+	public IdentityMap(Comparator<? super Entity> comparator) {
+		Comparator<Integer> byId = Comparator.nullsFirst(Comparator.naturalOrder());
+		this.ordered = new TreeSet<>((entity1, entity2) -> {
+			int order = comparator.compare(entity1, entity2);
+			return order != 0 ? order : byId.compare(entity1.getId(), entity2.getId());
+		});
+	}
+
+	// an empty map that is sorted like the given one
+	private IdentityMap(IdentityMap<Entity> template) {
+		this.ordered = template.ordered == null ? null : new TreeSet<>(template.ordered.comparator());
+	}
 
 
 	@Override
 	public int size() {
-		return ids.size();
+		return entities.size();
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return ids.isEmpty();
+		return entities.isEmpty();
 	}
 
 	@Override
 	public boolean contains(Object o) {
 		if(o instanceof BaseEntity) {
-			return ids.contains(((BaseEntity) o).getId());
+			return slotOf(((BaseEntity) o).getId()) >= 0;
 		} else {
 			return false;
 		}
 	}
 
+	/**
+	 * @return the entity with the given id, or {@code null} if there is none
+	 */
+	public Entity get(Integer id) {
+		return id == null ? entityAt(nullIdSlot) : get(id.intValue());
+	}
+
+	/**
+	 * Looks the id up without boxing it.
+	 * @return the entity with the given id, or {@code null} if there is none
+	 */
+	public Entity get(int id) {
+		return entityAt((int) slots.get(id));
+	}
+
 	@Override
 	public Iterator<Entity> iterator() {
-		throw new UnsupportedOperationException();
+		return ordered == null ? new EntityIterator() : new OrderedIterator();
+	}
+
+	@Override
+	public Spliterator<Entity> spliterator() {
+		return ordered == null ? new EntitySpliterator(0, -1, 0) : ordered.spliterator();
 	}
 
 	@Override
 	public Object[] toArray() {
-		throw new UnsupportedOperationException();
+		return ordered == null ? entities.toArray() : ordered.toArray();
 	}
 
 	@Override
 	public <T> T[] toArray(T[] ts) {
-		throw new UnsupportedOperationException();
+		return ordered == null ? entities.toArray(ts) : ordered.toArray(ts);
 	}
 
+	/**
+	 * Returns the entities of a sorted map as a read only set in comparator order, whose
+	 * {@code subSet}, {@code headSet}, {@code tailSet}, {@code ceiling} and {@code floor}
+	 * find ranges in logarithmic time. Range bounds can be entities with only the compared
+	 * properties set, an entity without id comes before all entities that compare equal
+	 * to it.
+	 * @throws IllegalStateException if the map was created without a comparator
+	 */
+	public NavigableSet<Entity> sortedView() {
+		if(ordered == null) {
+			throw new IllegalStateException("IdentityMap was created without a comparator");
+		}
+		return Collections.unmodifiableNavigableSet(ordered);
+	}
+
+	/**
+	 * Adds the entity, replacing the entity with the same id if there is one.
+	 */
 	@Override
 	public boolean add(Entity entity) {
-		if(!ids.contains(entity)) {
-			ids.add(entity.getId());
+		int slot = slotOf(entity.getId());
+		if(slot < 0) {
+			setSlot(entity.getId(), entities.size());
 			entities.add(entity);
+			modCount++;
 		} else {
-			entities.removeIf(entity::sameId);
-			this.add(entity);
+			Entity previous = entities.set(slot, entity);
+			if(ordered != null) {
+				ordered.remove(previous);
+			}
+		}
+		if(ordered != null) {
+			ordered.add(entity);
 		}
 		return true;
 	}
@@ -64,15 +161,38 @@ public class IdentityMap<Entity extends BaseEntity> implements Collection<Entity
 	@Override
 	public boolean remove(Object object) {
 		if(object instanceof BaseEntity) {
-			if(ids.remove(((BaseEntity) object).getId())) {
-				return entities.removeIf(((BaseEntity) object)::sameId);
+			Entity removed = removeFromSlots(((BaseEntity) object).getId());
+			if(removed != null) {
+				if(ordered != null) {
+					ordered.remove(removed);
+				}
+				return true;
 			}
 		}
 		return false;
 	}
 
+	private Entity removeFromSlots(Integer id) {
+		int slot = removeSlot(id);
+		if(slot < 0) {
+			return null;
+		}
+		Entity last = entities.remove(entities.size() - 1);
+		Entity removed = last;
+		if(slot < entities.size()) {
+			removed = entities.set(slot, last);
+			setSlot(last.getId(), slot);
+		}
+		modCount++;
+		return removed;
+	}
+
 	@Override
 	public boolean containsAll(Collection<?> collection) {
+		if(collection instanceof IdentityMap) {
+			IdentityMap<?> other = (IdentityMap<?>) collection;
+			return (other.nullIdSlot < 0 || nullIdSlot >= 0) && ids().containsAll(other.ids());
+		}
 		for(Object object: collection) {
 			if(!contains(object))
 				return false;
@@ -91,6 +211,10 @@ public class IdentityMap<Entity extends BaseEntity> implements Collection<Entity
 
 	@Override
 	public boolean removeAll(Collection<?> collection) {
+		if(collection.size() > entities.size()) {
+			// cheaper to look up each of the own entities in the ids of the collection
+			return removeByIds(IdBitSet.of(collection), hasNullId(collection), true);
+		}
 		boolean collectionChaged = false;
 		for(Object object: collection) {
 			collectionChaged |= remove(object);
@@ -98,18 +222,262 @@ public class IdentityMap<Entity extends BaseEntity> implements Collection<Entity
 		return collectionChaged;
 	}
 
+	/**
+	 * Keeps the entities whose id is the id of an entity in the collection.
+	 */
 	@Override
 	public boolean retainAll(Collection<?> collection) {
-		throw new UnsupportedOperationException();
+		return removeByIds(IdBitSet.of(collection), hasNullId(collection), false);
+	}
+
+	/**
+	 * @return a map of the entities of this map whose id is in the other map as well
+	 */
+	public IdentityMap<Entity> intersection(IdentityMap<?> other) {
+		IdentityMap<Entity> result = new IdentityMap<>(this);
+		ids().and(other.ids()).forEach(id -> result.add(get(id)));
+		if(nullIdSlot >= 0 && other.nullIdSlot >= 0) {
+			result.add(entities.get(nullIdSlot));
+		}
+		return result;
+	}
+
+	/**
+	 * @return a map of the entities of this map whose id is not in the other map
+	 */
+	public IdentityMap<Entity> difference(IdentityMap<?> other) {
+		IdentityMap<Entity> result = new IdentityMap<>(this);
+		ids().andNot(other.ids()).forEach(id -> result.add(get(id)));
+		if(nullIdSlot >= 0 && other.nullIdSlot < 0) {
+			result.add(entities.get(nullIdSlot));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the ids of the entities, without the entity that has no id. The set is kept
+	 * until an entity with a new id is added or an entity is removed.
+	 */
+	public IdBitSet ids() {
+		if(ids == null || idsModCount != modCount) {
+			IdBitSet ids = IdBitSet.of();
+			for(Entity entity: entities) {
+				if(entity.getId() != null) {
+					ids.add(entity.getId());
+				}
+			}
+			this.ids = ids;
+			this.idsModCount = modCount;
+		}
+		return ids;
+	}
+
+	private boolean removeByIds(IdBitSet ids, boolean nullId, boolean contained) {
+		boolean collectionChaged = false;
+		// from the end, so the entity moved into a freed slot was already looked at
+		for(int slot = entities.size() - 1; slot >= 0; slot--) {
+			Entity entity = entities.get(slot);
+			Integer id = entity.getId();
+			if((id == null ? nullId : ids.contains(id)) == contained) {
+				collectionChaged |= remove(entity);
+			}
+		}
+		return collectionChaged;
+	}
+
+	private static boolean hasNullId(Collection<?> collection) {
+		if(collection instanceof IdentityMap) {
+			return ((IdentityMap<?>) collection).nullIdSlot >= 0;
+		}
+		for(Object object: collection) {
+			if(object instanceof BaseEntity && ((BaseEntity) object).getId() == null) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	@Override
 	public void clear() {
-		ids.clear();
+		slots.clear();
+		nullIdSlot = -1;
 		entities.clear();
+		if(ordered != null) {
+			ordered.clear();
+		}
+		modCount++;
 	}
 
+	/**
+	 * Sorts the entities once, later adds and removes do not keep the order.
+	 * @throws IllegalStateException if the map is sorted, its order is fixed
+	 */
 	public void sort(Comparator<Entity> comparator) {
+		if(ordered != null) {
+			throw new IllegalStateException("A sorted IdentityMap keeps the order of its comparator");
+		}
 		entities.sort(comparator);
+		modCount++;
+		for(int slot = 0; slot < entities.size(); slot++) {
+			setSlot(entities.get(slot).getId(), slot);
+		}
+	}
+
+	private Entity entityAt(int slot) {
+		return slot < 0 ? null : entities.get(slot);
+	}
+
+	private int slotOf(Integer id) {
+		return id == null ? nullIdSlot : (int) slots.get(id);
+	}
+
+	private void setSlot(Integer id, int slot) {
+		if(id == null) {
+			nullIdSlot = slot;
+		} else {
+			slots.put(id, slot);
+		}
+	}
+
+	private int removeSlot(Integer id) {
+		if(id == null) {
+			int slot = nullIdSlot;
+			nullIdSlot = -1;
+			return slot;
+		}
+		return (int) slots.remove(id);
+	}
+
+	private final class EntityIterator implements Iterator<Entity> {
+
+		private int cursor;
+		private int lastReturned = -1;
+		private int expectedModCount = modCount;
+
+		@Override
+		public boolean hasNext() {
+			return cursor < entities.size();
+		}
+
+		@Override
+		public Entity next() {
+			if(modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if(cursor >= entities.size()) {
+				throw new NoSuchElementException();
+			}
+			lastReturned = cursor++;
+			return entities.get(lastReturned);
+		}
+
+		@Override
+		public void remove() {
+			if(lastReturned < 0) {
+				throw new IllegalStateException();
+			}
+			if(modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			IdentityMap.this.remove(entities.get(lastReturned));
+			// the last entity moved into the freed slot and is still to be returned
+			cursor = lastReturned;
+			lastReturned = -1;
+			expectedModCount = modCount;
+		}
+	}
+
+	private final class OrderedIterator implements Iterator<Entity> {
+
+		private final Iterator<Entity> iterator = ordered.iterator();
+		private Entity lastReturned;
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public Entity next() {
+			lastReturned = iterator.next();
+			return lastReturned;
+		}
+
+		@Override
+		public void remove() {
+			iterator.remove();
+			removeFromSlots(lastReturned.getId());
+		}
+	}
+
+	private final class EntitySpliterator implements Spliterator<Entity> {
+
+		private int origin;
+		// one past the last slot, -1 until first used
+		private int fence;
+		private int expectedModCount;
+
+		EntitySpliterator(int origin, int fence, int expectedModCount) {
+			this.origin = origin;
+			this.fence = fence;
+			this.expectedModCount = expectedModCount;
+		}
+
+		// binds to the map as it is when traversal starts, not when the spliterator was made
+		private int fence() {
+			if(fence < 0) {
+				expectedModCount = modCount;
+				fence = entities.size();
+			}
+			return fence;
+		}
+
+		@Override
+		public Spliterator<Entity> trySplit() {
+			int high = fence();
+			int middle = (origin + high) >>> 1;
+			if(middle <= origin) {
+				return null;
+			}
+			Spliterator<Entity> prefix = new EntitySpliterator(origin, middle, expectedModCount);
+			origin = middle;
+			return prefix;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Entity> action) {
+			int high = fence();
+			if(origin >= high) {
+				return false;
+			}
+			Entity entity = entities.get(origin++);
+			action.accept(entity);
+			if(modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Entity> action) {
+			int high = fence();
+			for(int slot = origin; slot < high; slot++) {
+				action.accept(entities.get(slot));
+			}
+			origin = high;
+			if(modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+
+		@Override
+		public long estimateSize() {
+			return fence() - origin;
+		}
+
+		@Override
+		public int characteristics() {
+			return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT | Spliterator.NONNULL;
+		}
 	}
 }
@@ -0,0 +1,141 @@
+package org.springframework.samples.petclinic.utility;
+
+import java.util.Arrays;
+
+/**
+ * A map from {@code int} keys to non-negative {@code long} values that stores both in
+ * flat arrays, using open addressing with linear probing, so it needs no object per entry.
+ * <p>
+ * This class is not thread-safe, callers must guard it with a lock.
+ */
+final class IntLongHashMap {
+
+	static final long MISSING = -1;
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private int[] keys;
+
+	// MISSING marks a free slot
+	private long[] values;
+
+	private int size;
+
+	private int resizeAt;
+
+	IntLongHashMap(int expectedSize) {
+		allocate(tableSizeFor((int) Math.ceil(Math.max(expectedSize, 4) / LOAD_FACTOR)));
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the value of the key, or {@link #MISSING}
+	 */
+	long get(int key) {
+		int mask = keys.length - 1;
+		for (int slot = slot(key, mask);; slot = (slot + 1) & mask) {
+			if (values[slot] == MISSING) {
+				return MISSING;
+			}
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+		}
+	}
+
+	/**
+	 * @return the previous value of the key, or {@link #MISSING}
+	 */
+	long put(int key, long value) {
+		int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		for (; values[slot] != MISSING; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				long previous = values[slot];
+				values[slot] = value;
+				return previous;
+			}
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeAt) {
+			rehash(keys.length << 1);
+		}
+		return MISSING;
+	}
+
+	/**
+	 * @return the value the key was removed with, or {@link #MISSING}
+	 */
+	long remove(int key) {
+		int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		for (; values[slot] != MISSING; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				long previous = values[slot];
+				shiftBack(slot, mask);
+				size--;
+				return previous;
+			}
+		}
+		return MISSING;
+	}
+
+	void clear() {
+		Arrays.fill(values, MISSING);
+		size = 0;
+	}
+
+	// fills the freed slot with a later entry of the same probe run, so that lookups never
+	// stop early at a hole and no tombstones are needed
+	private void shiftBack(int free, int mask) {
+		for (int slot = (free + 1) & mask; values[slot] != MISSING; slot = (slot + 1) & mask) {
+			int home = slot(keys[slot], mask);
+			// the entry may move if its home slot does not lie cyclically in (free, slot]
+			if (((slot - home) & mask) >= ((slot - free) & mask)) {
+				keys[free] = keys[slot];
+				values[free] = values[slot];
+				free = slot;
+			}
+		}
+		values[free] = MISSING;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		long[] oldValues = values;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != MISSING) {
+				int slot = slot(oldKeys[i], mask);
+				while (values[slot] != MISSING) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new long[capacity];
+		Arrays.fill(values, MISSING);
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int slot(int key, int mask) {
+		// spread sequential ids over the table
+		int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private static int tableSizeFor(int n) {
+		return Integer.highestOneBit(n - 1) << 1;
+	}
+
+}
@@ -0,0 +1,34 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.springframework.samples.petclinic.owner.Pet;
+
+import javax.cache.Cache;
+
+/**
+ * A {@link PetCacheTier} kept in a JCache {@link Cache}, such as the Ehcache {@code pets}
+ * cache set up by the cache configuration.
+ */
+public class JCachePetCacheTier implements PetCacheTier {
+
+	private final Cache<Integer, Pet> cache;
+
+	public JCachePetCacheTier(Cache<Integer, Pet> cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public void put(Pet pet) {
+		cache.put(pet.getId(), pet);
+	}
+
+	@Override
+	public Pet remove(Integer id) {
+		return cache.getAndRemove(id);
+	}
+
+	@Override
+	public void clear() {
+		cache.clear();
+	}
+
+}
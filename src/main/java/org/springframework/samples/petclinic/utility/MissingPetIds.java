@@ -0,0 +1,69 @@
+package org.springframework.samples.petclinic.utility;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The ids a {@link PetTimedCache} recently found no pet for, each with the time until
+ * which that answer is trusted. The number of ids is bounded, the least recently used id
+ * is dropped first, so bursts of lookups for bogus ids can not grow it without limit.
+ * <p>
+ * Only misses consult it, so a single monitor is enough.
+ */
+final class MissingPetIds {
+
+	// ids in access order, mapped to their expiration time
+	private final LinkedHashMap<Integer, Long> expiries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private int maximumSize;
+
+	MissingPetIds(int maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+
+	synchronized void setMaximumSize(int maximumSize) {
+		this.maximumSize = maximumSize;
+		trim();
+	}
+
+	/**
+	 * @return whether the id is known to have no pet at {@code now}
+	 */
+	synchronized boolean contains(Integer key, long now) {
+		Long expiresAt = expiries.get(key);
+		if (expiresAt == null) {
+			return false;
+		}
+		if (expiresAt - now > 0) {
+			return true;
+		}
+		expiries.remove(key);
+		return false;
+	}
+
+	synchronized void add(Integer key, long expiresAt) {
+		expiries.put(key, expiresAt);
+		trim();
+	}
+
+	synchronized void remove(Integer key) {
+		expiries.remove(key);
+	}
+
+	synchronized void clear() {
+		expiries.clear();
+	}
+
+	synchronized int size() {
+		return expiries.size();
+	}
+
+	private void trim() {
+		Iterator<Integer> eldest = expiries.keySet().iterator();
+		for (int size = expiries.size(); size > maximumSize; size--) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+}
@@ -1,29 +1,626 @@
 package org.springframework.samples.petclinic.utility;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+/**
+ * A {@link SimpleDI} that can be shared between threads. Registrations copy the bindings
+ * into a new immutable map that is published through a volatile field, so lookups read
+ * the latest snapshot without locking, with a single map probe. The last registration
+ * for a type wins.
+ * <p>
+ * Classes can be autowired: their constructor is called with the instances the container
+ * provides for its parameters, through a factory that is generated once per class, see
+ * {@link AutowiredConstructor}.
+ * <p>
+ * The dependencies of autowired bindings form a graph. A registration that would close a
+ * cycle in it is rejected, and {@link #initializeSingletons(ForkJoinPool)} checks that
+ * every dependency is provided before it makes all singletons up front, those that do not
+ * depend on each other in parallel.
+ * <p>
+ * Besides fixed instances, new instances and singletons, instances can be provided per
+ * thread or per {@link Scope}, and are disposed of when the thread scope or the scope is
+ * closed. Each scoped binding gets a number when it is registered, which is its slot in
+ * the array of instances of a scope, so a lookup in a scope is an array access.
+ */
 public class MyDI extends SimpleDI {
 
-	private HashMap<Class<?>, Callable<Object>> byConstructor = new HashMap<>();
-	private HashMap<Class<?>, Object> byInstance = new HashMap<>();
+	private final static Logger log = LoggerFactory.getLogger(MyDI.class);
+
+	private static final Class<?>[] NO_DEPENDENCIES = new Class<?>[0];
+
+	private final Object registrationLock = new Object();
+
+	private volatile Map<Class<?>, Binding> bindings = Collections.emptyMap();
+
+	private final ConcurrentHashMap<Class<?>, AutowiredConstructor> autowiredConstructors = new ConcurrentHashMap<>();
+
+	private final AtomicInteger scopedBindingCount = new AtomicInteger();
+
+	private final ThreadLocal<ScopedInstances> threadInstances = ThreadLocal.withInitial(ScopedInstances::new);
+
+	private final ThreadLocal<Scope> currentScope = new ThreadLocal<>();
 
 	@Override
 	public void provideByInstance(Class<?> typeClass, Object instanceOfType) {
-		byInstance.put(typeClass, instanceOfType);
+		bind(typeClass, new InstanceBinding(instanceOfType));
 	}
 
 	@Override
 	public void provideByAConstructorFunction(Class<?> typeClass, Callable<Object> providerFunction) {
-		byConstructor.put(typeClass, providerFunction);
+		bind(typeClass, new ConstructorBinding(providerFunction));
+	}
+
+	@Override
+	public void provideSingleton(Class<?> typeClass, Callable<Object> providerFunction) {
+		bind(typeClass, new SingletonBinding(providerFunction));
+	}
+
+	@Override
+	public void provideByAutowiring(Class<?> typeClass, Class<?> implementationClass) {
+		bind(typeClass, new ConstructorBinding(autowired(implementationClass)));
+	}
+
+	/**
+	 * Provides one instance per thread, made by the function on the first lookup in the
+	 * thread. Instances that are {@link AutoCloseable} are closed by
+	 * {@link #closeThreadScope()}.
+	 */
+	public void provideThreadScoped(Class<?> typeClass, Callable<Object> providerFunction) {
+		provideThreadScoped(typeClass, providerFunction, MyDI::closeIfAutoCloseable);
+	}
+
+	/**
+	 * Provides one instance per thread, made by the function on the first lookup in the
+	 * thread and passed to the disposer by {@link #closeThreadScope()}.
+	 */
+	public void provideThreadScoped(Class<?> typeClass, Callable<Object> providerFunction, Consumer<Object> disposer) {
+		bind(typeClass, new ScopedBinding(providerFunction, disposer, true));
+	}
+
+	/**
+	 * Provides one instance per {@link Scope}, made by the function on the first lookup in
+	 * the scope. Instances that are {@link AutoCloseable} are closed with the scope.
+	 */
+	public void provideScoped(Class<?> typeClass, Callable<Object> providerFunction) {
+		provideScoped(typeClass, providerFunction, MyDI::closeIfAutoCloseable);
+	}
+
+	/**
+	 * Provides one instance per {@link Scope}, made by the function on the first lookup in
+	 * the scope and passed to the disposer when the scope is closed.
+	 */
+	public void provideScoped(Class<?> typeClass, Callable<Object> providerFunction, Consumer<Object> disposer) {
+		bind(typeClass, new ScopedBinding(providerFunction, disposer, false));
+	}
+
+	/**
+	 * Opens a scope for the current thread, which lookups of scoped bindings on this thread
+	 * use until it is closed. A scope opened while another one is open is nested in it and
+	 * has its own instances, closing it makes the other one current again.
+	 */
+	public Scope openScope() {
+		Scope scope = new Scope(currentScope.get());
+		currentScope.set(scope);
+		return scope;
+	}
+
+	/**
+	 * Disposes of the thread scoped instances of the current thread, a later lookup on the
+	 * thread makes new ones. Threads of a pool should call this when they finish a task.
+	 * @throws RuntimeException the first exception a disposer threw, after all were called
+	 */
+	public void closeThreadScope() {
+		ScopedInstances instances = threadInstances.get();
+		threadInstances.remove();
+		instances.dispose();
+	}
+
+	/**
+	 * @return a function that makes a new instance of the class with its constructor,
+	 * passing the instances this container provides for its parameters when it is called
+	 * @throws IllegalArgumentException if the class has no constructor to autowire
+	 */
+	public Callable<Object> autowired(Class<?> implementationClass) {
+		return autowiredConstructors.computeIfAbsent(implementationClass, type -> new AutowiredConstructor(this, type));
 	}
 
 	@Override
 	public Object getInstanceOf(Class<?> requiredType) throws Exception {
-		if (byInstance.get(requiredType) != null)
-			return byInstance.get(requiredType);
-		if (byConstructor.get(requiredType) != null)
-			return byConstructor.get(requiredType).call();
-		return null;
+		Binding binding = bindings.get(requiredType);
+		return binding == null ? null : binding.get();
+	}
+
+	/**
+	 * Makes every singleton that is not made yet, in layers: first those that depend on no
+	 * other binding, then those that depend only on the first layer, and so on. The
+	 * singletons of a layer are made in parallel on the common fork join pool.
+	 * @see #initializeSingletons(ForkJoinPool)
+	 */
+	public StartupReport initializeSingletons() throws Exception {
+		return initializeSingletons(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Makes every singleton that is not made yet, in layers: first those that depend on no
+	 * other binding, then those that depend only on the first layer, and so on. The
+	 * singletons of a layer are made in parallel on the pool, so slow ones overlap.
+	 * Dependencies are only known for autowired bindings, other functions may look up
+	 * singletons of a later layer, which are then made on their thread.
+	 * @return how long making each singleton took, which is logged as well
+	 * @throws IllegalStateException if a type is not provided that a binding depends on,
+	 * before any singleton is made
+	 * @throws Exception the first exception a singleton's function threw
+	 */
+	public StartupReport initializeSingletons(ForkJoinPool pool) throws Exception {
+		Map<Class<?>, Binding> snapshot = bindings;
+		checkDependencies(snapshot);
+		List<List<Class<?>>> layers = layers(snapshot);
+		List<StartupReport.Component> components = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int layer = 0; layer < layers.size(); layer++) {
+			List<Class<?>> types = new ArrayList<>();
+			List<ForkJoinTask<Object>> tasks = new ArrayList<>();
+			for (Class<?> type : layers.get(layer)) {
+				Binding binding = snapshot.get(type);
+				if (binding instanceof SingletonBinding && !((SingletonBinding) binding).isInitialized()) {
+					types.add(type);
+					tasks.add(pool.submit(((SingletonBinding) binding)::get));
+				}
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					tasks.get(i).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+				long nanos = ((SingletonBinding) snapshot.get(types.get(i))).constructionNanos;
+				components.add(new StartupReport.Component(types.get(i), layer, nanos));
+			}
+		}
+		StartupReport report = new StartupReport(components, System.nanoTime() - start);
+		log.info("{}", report);
+		return report;
+	}
+
+	/**
+	 * @return the bindings as of now, a new map after every registration
+	 */
+	Map<Class<?>, Binding> bindings() {
+		return bindings;
+	}
+
+	private void bind(Class<?> typeClass, Binding binding) {
+		synchronized (registrationLock) {
+			Map<Class<?>, Binding> updated = new HashMap<>(bindings);
+			updated.put(typeClass, binding);
+			checkNoCycle(typeClass, updated);
+			bindings = Collections.unmodifiableMap(updated);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the type depends on itself, directly or through
+	 * other bindings
+	 */
+	private static void checkNoCycle(Class<?> type, Map<Class<?>, Binding> bindings) {
+		// depth first from the type, the path holds the dependencies that lead back to it
+		Deque<Class<?>> path = new ArrayDeque<>();
+		Map<Class<?>, Boolean> visited = new HashMap<>();
+		if (reaches(type, type, bindings, path, visited)) {
+			StringBuilder cycle = new StringBuilder(type.getName());
+			for (Class<?> dependency : path) {
+				cycle.append(" -> ").append(dependency.getName());
+			}
+			throw new IllegalArgumentException("Dependency cycle: " + cycle);
+		}
+	}
+
+	private static boolean reaches(Class<?> from, Class<?> target, Map<Class<?>, Binding> bindings,
+			Deque<Class<?>> path, Map<Class<?>, Boolean> visited) {
+		Binding binding = bindings.get(from);
+		if (binding == null) {
+			return false;
+		}
+		for (Class<?> dependency : binding.dependencies()) {
+			path.addLast(dependency);
+			if (dependency == target
+					|| visited.putIfAbsent(dependency, true) == null && reaches(dependency, target, bindings, path, visited)) {
+				return true;
+			}
+			path.removeLast();
+		}
+		return false;
+	}
+
+	/**
+	 * @throws IllegalStateException listing every binding whose dependencies are not all
+	 * provided
+	 */
+	private static void checkDependencies(Map<Class<?>, Binding> bindings) {
+		TreeSet<String> missing = new TreeSet<>();
+		bindings.forEach((type, binding) -> {
+			for (Class<?> dependency : binding.dependencies()) {
+				if (!bindings.containsKey(dependency)) {
+					missing.add(dependency.getName() + " for " + type.getName());
+				}
+			}
+		});
+		if (!missing.isEmpty()) {
+			throw new IllegalStateException("No binding of " + String.join(", ", missing));
+		}
+	}
+
+	/**
+	 * @return the bound types by layer, each type comes after the types it depends on
+	 */
+	private static List<List<Class<?>>> layers(Map<Class<?>, Binding> bindings) {
+		Map<Class<?>, Integer> layerOf = new HashMap<>();
+		List<List<Class<?>>> layers = new ArrayList<>();
+		for (Class<?> type : bindings.keySet()) {
+			int layer = layerOf(type, bindings, layerOf);
+			while (layers.size() <= layer) {
+				layers.add(new ArrayList<>());
+			}
+			layers.get(layer).add(type);
+		}
+		return layers;
+	}
+
+	// the graph is acyclic, registrations keep it so
+	private static int layerOf(Class<?> type, Map<Class<?>, Binding> bindings, Map<Class<?>, Integer> layerOf) {
+		Integer known = layerOf.get(type);
+		if (known != null) {
+			return known;
+		}
+		int layer = 0;
+		for (Class<?> dependency : bindings.get(type).dependencies()) {
+			layer = Math.max(layer, layerOf(dependency, bindings, layerOf) + 1);
+		}
+		layerOf.put(type, layer);
+		return layer;
+	}
+
+	/**
+	 * How an instance of a registered type is provided.
+	 */
+	interface Binding {
+
+		Object get() throws Exception;
+
+		/**
+		 * @return the types looked up to make an instance, as far as they are known
+		 */
+		default Class<?>[] dependencies() {
+			return NO_DEPENDENCIES;
+		}
+
+	}
+
+	private static void closeIfAutoCloseable(Object instance) {
+		if (instance instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) instance).close();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException("Could not close " + instance, e);
+			}
+		}
+	}
+
+	private static Class<?>[] dependenciesOf(Callable<Object> constructor) {
+		return constructor instanceof AutowiredConstructor ? ((AutowiredConstructor) constructor).dependencies()
+				: NO_DEPENDENCIES;
+	}
+
+	private static final class InstanceBinding implements Binding {
+
+		private final Object instance;
+
+		InstanceBinding(Object instance) {
+			this.instance = instance;
+		}
+
+		@Override
+		public Object get() {
+			return instance;
+		}
+
+	}
+
+	private static final class ConstructorBinding implements Binding {
+
+		private final Callable<Object> constructor;
+
+		ConstructorBinding(Callable<Object> constructor) {
+			this.constructor = constructor;
+		}
+
+		@Override
+		public Object get() throws Exception {
+			return constructor.call();
+		}
+
+		@Override
+		public Class<?>[] dependencies() {
+			return dependenciesOf(constructor);
+		}
+
+	}
+
+	/**
+	 * Calls the constructor once, when first asked for an instance, and returns that
+	 * instance from then on. If the constructor fails the next lookup calls it again.
+	 */
+	private static final class SingletonBinding implements Binding {
+
+		private final Callable<Object> constructor;
+
+		private volatile Object instance;
+
+		// how long the constructor took, set with the instance
+		long constructionNanos;
+
+		SingletonBinding(Callable<Object> constructor) {
+			this.constructor = constructor;
+		}
+
+		@Override
+		public Object get() throws Exception {
+			Object result = instance;
+			if (result == null) {
+				synchronized (this) {
+					result = instance;
+					if (result == null) {
+						long start = System.nanoTime();
+						result = constructor.call();
+						constructionNanos = System.nanoTime() - start;
+						instance = result;
+					}
+				}
+			}
+			return result;
+		}
+
+		boolean isInitialized() {
+			return instance != null;
+		}
+
+		@Override
+		public Class<?>[] dependencies() {
+			return dependenciesOf(constructor);
+		}
+
+	}
+
+	/**
+	 * Provides the instance of the thread scope or of the current scope, the number of the
+	 * binding is its slot in the instances of a scope.
+	 */
+	private final class ScopedBinding implements Binding {
+
+		private final int slot = scopedBindingCount.getAndIncrement();
+
+		private final Callable<Object> constructor;
+
+		private final Consumer<Object> disposer;
+
+		private final boolean perThread;
+
+		ScopedBinding(Callable<Object> constructor, Consumer<Object> disposer, boolean perThread) {
+			this.constructor = constructor;
+			this.disposer = disposer;
+			this.perThread = perThread;
+		}
+
+		/**
+		 * @throws IllegalStateException if the binding is not per thread and no scope is open
+		 */
+		@Override
+		public Object get() throws Exception {
+			if (perThread) {
+				return threadInstances.get().get(this);
+			}
+			Scope scope = currentScope.get();
+			if (scope == null) {
+				throw new IllegalStateException("No scope is open on " + Thread.currentThread().getName());
+			}
+			return scope.instances.get(this);
+		}
+
+		@Override
+		public Class<?>[] dependencies() {
+			return dependenciesOf(constructor);
+		}
+
+	}
+
+	/**
+	 * The instances made in one scope, by slot, and the bindings they were made for in the
+	 * order they were made, to dispose of them in reverse order. Used by one thread only.
+	 */
+	private static final class ScopedInstances {
+
+		private Object[] instances = new Object[8];
+
+		private final List<ScopedBinding> made = new ArrayList<>();
+
+		Object get(ScopedBinding binding) throws Exception {
+			int slot = binding.slot;
+			if (slot < instances.length) {
+				Object instance = instances[slot];
+				if (instance != null) {
+					return instance;
+				}
+			} else {
+				instances = Arrays.copyOf(instances, Math.max(slot + 1, instances.length * 2));
+			}
+			Object instance = binding.constructor.call();
+			if (instance != null) {
+				instances[slot] = instance;
+				made.add(binding);
+			}
+			return instance;
+		}
+
+		void dispose() {
+			RuntimeException failure = null;
+			for (int i = made.size() - 1; i >= 0; i--) {
+				ScopedBinding binding = made.get(i);
+				Object instance = instances[binding.slot];
+				instances[binding.slot] = null;
+				try {
+					binding.disposer.accept(instance);
+				} catch (RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+				}
+			}
+			made.clear();
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+	}
+
+	/**
+	 * The instances of scoped bindings made on one thread between {@link #openScope()} and
+	 * {@link #close()}, such as the identity caches of a request.
+	 */
+	public final class Scope implements AutoCloseable {
+
+		private final Scope enclosing;
+
+		private final ScopedInstances instances = new ScopedInstances();
+
+		private boolean closed;
+
+		private Scope(Scope enclosing) {
+			this.enclosing = enclosing;
+		}
+
+		/**
+		 * Disposes of the instances of the scope, in the reverse order they were made in, and
+		 * makes the scope it was opened in current again.
+		 * @throws IllegalStateException if the scope is not the current scope of the thread
+		 * @throws RuntimeException the first exception a disposer threw, after all were called
+		 */
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			if (currentScope.get() != this) {
+				throw new IllegalStateException("Only the current scope of a thread can be closed");
+			}
+			closed = true;
+			if (enclosing == null) {
+				currentScope.remove();
+			} else {
+				currentScope.set(enclosing);
+			}
+			instances.dispose();
+		}
+
+	}
+
+	/**
+	 * How long making each singleton took in {@link #initializeSingletons(ForkJoinPool)},
+	 * slowest first.
+	 */
+	public static final class StartupReport {
+
+		private final List<Component> components;
+
+		private final long elapsedNanos;
+
+		StartupReport(List<Component> components, long elapsedNanos) {
+			List<Component> sorted = new ArrayList<>(components);
+			sorted.sort(Comparator.comparingLong(Component::getConstructionNanos).reversed());
+			this.components = Collections.unmodifiableList(sorted);
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public List<Component> getComponents() {
+			return components;
+		}
+
+		/**
+		 * @return how long making all singletons took, less than the sum of their times
+		 * when some were made in parallel
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder(String.format("Initialized %d singletons in %.1f ms",
+					components.size(), elapsedNanos / 1e6));
+			for (Component component : components) {
+				report.append(String.format("%n  %8.1f ms  layer %d  %s", component.constructionNanos / 1e6,
+						component.layer, component.type.getName()));
+			}
+			return report.toString();
+		}
+
+		public static final class Component {
+
+			private final Class<?> type;
+
+			private final int layer;
+
+			private final long constructionNanos;
+
+			Component(Class<?> type, int layer, long constructionNanos) {
+				this.type = type;
+				this.layer = layer;
+				this.constructionNanos = constructionNanos;
+			}
+
+			public Class<?> getType() {
+				return type;
+			}
+
+			/**
+			 * @return 0 for singletons that depend on no other binding, else one more than
+			 * the highest layer of their dependencies
+			 */
+			public int getLayer() {
+				return layer;
+			}
+
+			public long getConstructionNanos() {
+				return constructionNanos;
+			}
+
+		}
+
 	}
 }
@@ -0,0 +1,271 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.samples.petclinic.owner.Pet;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link PetCacheTier} that keeps pets outside of the Java heap, encoded by
+ * {@link PetCodec}, so a large number of demoted pets adds neither heap usage nor garbage
+ * collection work.
+ * <p>
+ * The memory is divided into direct {@link ByteBuffer} slabs of {@value #SLAB_SIZE} bytes
+ * that are allocated as they are needed. Each slab is cut into chunks of one size class,
+ * from 64 bytes up to 64 KB in powers of two, and an encoded pet is stored in a chunk of
+ * the smallest class it fits in. Freed chunks are kept on a free list per class. Once all
+ * slabs are in use a class that needs a chunk reuses its chunks in turn, evicting the
+ * pets stored in them. Pets are found through an {@link IntLongHashMap} from id to chunk
+ * address that needs no object per entry either.
+ * <p>
+ * Pets that are read are decoded into new instances, their owner lists no pets. Pets whose
+ * encoding is larger than the largest class are not stored.
+ */
+public class OffHeapPetTier implements PetCacheTier {
+
+	private final static Logger log = LoggerFactory.getLogger(OffHeapPetTier.class);
+
+	static final int SLAB_SIZE = 1 << 20;
+
+	private static final int MIN_CHUNK_SHIFT = 6;
+
+	private static final int MAX_CHUNK_SHIFT = 16;
+
+	// the pet id and the length of its encoding precede it in the chunk
+	private static final int HEADER_SIZE = 8;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final IntLongHashMap index = new IntLongHashMap(1024);
+
+	private final ByteBuffer[] slabs;
+
+	// the size class every slab in use is cut into
+	private final int[] slabClasses;
+
+	private int slabCount;
+
+	private final SizeClass[] sizeClasses = new SizeClass[MAX_CHUNK_SHIFT - MIN_CHUNK_SHIFT + 1];
+
+	private long evictionCount;
+
+	/**
+	 * @param capacityInBytes the off-heap memory to use at most, rounded up to whole slabs
+	 */
+	public OffHeapPetTier(long capacityInBytes) {
+		if (capacityInBytes <= 0) {
+			throw new IllegalArgumentException("capacityInBytes must be positive");
+		}
+		int slabLimit = (int) Math.min(Integer.MAX_VALUE, (capacityInBytes + SLAB_SIZE - 1) / SLAB_SIZE);
+		this.slabs = new ByteBuffer[slabLimit];
+		this.slabClasses = new int[slabLimit];
+		for (int i = 0; i < sizeClasses.length; i++) {
+			sizeClasses[i] = new SizeClass(1 << (MIN_CHUNK_SHIFT + i));
+		}
+	}
+
+	@Override
+	public void put(Pet pet) {
+		Integer id = pet.getId();
+		byte[] encoded = PetCodec.encode(pet);
+		int sizeClass = sizeClassOf(HEADER_SIZE + encoded.length);
+		lock.lock();
+		try {
+			free(index.remove(id));
+			if (sizeClass < 0) {
+				log.debug("Not storing pet {}, its encoding takes {} bytes", id, encoded.length);
+				return;
+			}
+			long address = allocate(sizeClass);
+			if (address == IntLongHashMap.MISSING) {
+				return;
+			}
+			ByteBuffer slab = slabs[slab(address)];
+			int offset = offset(address);
+			slab.putInt(offset, id);
+			slab.putInt(offset + 4, encoded.length);
+			// cast for Java 8, where position is declared on Buffer only
+			((Buffer) slab).position(offset + HEADER_SIZE);
+			slab.put(encoded);
+			index.put(id, address);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Pet remove(Integer id) {
+		byte[] encoded;
+		lock.lock();
+		try {
+			long address = index.remove(id);
+			if (address == IntLongHashMap.MISSING) {
+				return null;
+			}
+			ByteBuffer slab = slabs[slab(address)];
+			int offset = offset(address);
+			encoded = new byte[slab.getInt(offset + 4)];
+			((Buffer) slab).position(offset + HEADER_SIZE);
+			slab.get(encoded);
+			free(address);
+		} finally {
+			lock.unlock();
+		}
+		return PetCodec.decode(encoded);
+	}
+
+	/**
+	 * Drops every pet. The slabs stay allocated and are reused.
+	 */
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			index.clear();
+			slabCount = 0;
+			for (SizeClass sizeClass : sizeClasses) {
+				sizeClass.clear();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of pets stored
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return index.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of pets dropped to make room for others
+	 */
+	public long evictionCount() {
+		lock.lock();
+		try {
+			return evictionCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the address of a chunk of the size class, or {@link IntLongHashMap#MISSING}
+	 * if the class has no chunk and no slab is left for it
+	 */
+	private long allocate(int sizeClass) {
+		SizeClass chunks = sizeClasses[sizeClass];
+		if (chunks.freeCount > 0) {
+			return chunks.free[--chunks.freeCount];
+		}
+		if (chunks.slabCount > 0 && chunks.bump + chunks.chunkSize <= SLAB_SIZE) {
+			long address = address(chunks.slabs[chunks.slabCount - 1], chunks.bump);
+			chunks.bump += chunks.chunkSize;
+			return address;
+		}
+		if (slabCount < slabs.length) {
+			int slab = slabCount++;
+			if (slabs[slab] == null) {
+				slabs[slab] = ByteBuffer.allocateDirect(SLAB_SIZE);
+			}
+			slabClasses[slab] = sizeClass;
+			chunks.addSlab(slab);
+			chunks.bump = chunks.chunkSize;
+			return address(slab, 0);
+		}
+		if (chunks.slabCount == 0) {
+			return IntLongHashMap.MISSING;
+		}
+		// every chunk of the class is in use, reuse them in turn
+		int chunksPerSlab = SLAB_SIZE / chunks.chunkSize;
+		int chunk = chunks.hand;
+		chunks.hand = (chunk + 1) % (chunks.slabCount * chunksPerSlab);
+		int slab = chunks.slabs[chunk / chunksPerSlab];
+		int offset = (chunk % chunksPerSlab) * chunks.chunkSize;
+		index.remove(slabs[slab].getInt(offset));
+		evictionCount++;
+		return address(slab, offset);
+	}
+
+	private void free(long address) {
+		if (address != IntLongHashMap.MISSING) {
+			sizeClasses[slabClasses[slab(address)]].push(address);
+		}
+	}
+
+	private static int sizeClassOf(int size) {
+		int shift = Math.max(MIN_CHUNK_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+		return shift > MAX_CHUNK_SHIFT ? -1 : shift - MIN_CHUNK_SHIFT;
+	}
+
+	private static long address(int slab, int offset) {
+		return ((long) slab << 32) | offset;
+	}
+
+	private static int slab(long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offset(long address) {
+		return (int) address;
+	}
+
+	/**
+	 * The slabs and free chunks of one chunk size.
+	 */
+	private static final class SizeClass {
+
+		final int chunkSize;
+
+		int[] slabs = new int[4];
+
+		int slabCount;
+
+		// the offset of the next never used chunk in the last slab
+		int bump;
+
+		long[] free = new long[64];
+
+		int freeCount;
+
+		// the next chunk to reuse once the class can not grow anymore
+		int hand;
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		void addSlab(int slab) {
+			if (slabCount == slabs.length) {
+				slabs = Arrays.copyOf(slabs, slabCount * 2);
+			}
+			slabs[slabCount++] = slab;
+		}
+
+		void push(long address) {
+			if (freeCount == free.length) {
+				free = Arrays.copyOf(free, freeCount * 2);
+			}
+			free[freeCount++] = address;
+		}
+
+		void clear() {
+			slabCount = 0;
+			bump = 0;
+			freeCount = 0;
+			hand = 0;
+		}
+
+	}
+
+}
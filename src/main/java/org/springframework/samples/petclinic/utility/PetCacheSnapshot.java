@@ -0,0 +1,88 @@
+package org.springframework.samples.petclinic.utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The keys of a {@link PetTimedCache} and their access frequencies, as written on shutdown
+ * and read on startup to warm the cache again.
+ * <p>
+ * The file starts with a magic number, a format version and the entry count, followed by
+ * one {@code int} key and one {@code byte} frequency per entry, hottest entries first. It
+ * is written to a temporary file that is then moved over the previous snapshot, so a crash
+ * while writing never leaves a truncated snapshot behind.
+ */
+final class PetCacheSnapshot {
+
+	private static final int MAGIC = 0x50455443;
+
+	private static final short VERSION = 1;
+
+	private final int[] keys;
+
+	private final byte[] frequencies;
+
+	PetCacheSnapshot(int[] keys, byte[] frequencies) {
+		this.keys = keys;
+		this.frequencies = frequencies;
+	}
+
+	int size() {
+		return keys.length;
+	}
+
+	int key(int index) {
+		return keys[index];
+	}
+
+	int frequency(int index) {
+		return frequencies[index];
+	}
+
+	void write(Path file) throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+				out.writeInt(MAGIC);
+				out.writeShort(VERSION);
+				out.writeInt(keys.length);
+				for (int i = 0; i < keys.length; i++) {
+					out.writeInt(keys[i]);
+					out.writeByte(frequencies[i]);
+				}
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	static PetCacheSnapshot read(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+				throw new IOException("Not a pet cache snapshot: " + file);
+			}
+			int count = in.readInt();
+			if (count < 0) {
+				throw new IOException("Corrupt pet cache snapshot: " + file);
+			}
+			int[] keys = new int[count];
+			byte[] frequencies = new byte[count];
+			for (int i = 0; i < count; i++) {
+				keys[i] = in.readInt();
+				frequencies[i] = in.readByte();
+			}
+			return new PetCacheSnapshot(keys, frequencies);
+		}
+	}
+
+}
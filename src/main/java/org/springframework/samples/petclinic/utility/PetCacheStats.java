@@ -0,0 +1,101 @@
+package org.springframework.samples.petclinic.utility;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running statistics of a {@link PetTimedCache}. The counters are striped
+ * {@link LongAdder}s, so recording them on the request path does not make threads
+ * contend on a shared memory location.
+ */
+public final class PetCacheStats {
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder puts = new LongAdder();
+
+	private final LongAdder loadSuccesses = new LongAdder();
+
+	private final LongAdder loadFailures = new LongAdder();
+
+	private final LongAdder totalLoadTime = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	void recordHit() {
+		hits.increment();
+	}
+
+	void recordMiss() {
+		misses.increment();
+	}
+
+	void recordPut() {
+		puts.increment();
+	}
+
+	void recordLoadSuccess(long loadTimeNanos) {
+		loadSuccesses.increment();
+		totalLoadTime.add(loadTimeNanos);
+	}
+
+	void recordLoadFailure(long loadTimeNanos) {
+		loadFailures.increment();
+		totalLoadTime.add(loadTimeNanos);
+	}
+
+	void recordEviction() {
+		evictions.increment();
+	}
+
+	/**
+	 * @return the number of reads answered from the cache
+	 */
+	public long hitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of reads that had to wait for a load
+	 */
+	public long missCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of entries added to the cache
+	 */
+	public long putCount() {
+		return puts.sum();
+	}
+
+	/**
+	 * @return the number of repository loads that returned normally
+	 */
+	public long loadSuccessCount() {
+		return loadSuccesses.sum();
+	}
+
+	/**
+	 * @return the number of repository loads that threw an exception
+	 */
+	public long loadFailureCount() {
+		return loadFailures.sum();
+	}
+
+	/**
+	 * @return the time spent in repository loads, in nanoseconds
+	 */
+	public long totalLoadTime() {
+		return totalLoadTime.sum();
+	}
+
+	/**
+	 * @return the number of entries removed because they expired or the cache was full
+	 */
+	public long evictionCount() {
+		return evictions.sum();
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.springframework.samples.petclinic.owner.Pet;
+
+/**
+ * A larger, slower cache level behind {@link PetTimedCache}. Pets evicted from the
+ * {@link PetTimedCache} because it is full are demoted into the tier, and a miss in the
+ * {@link PetTimedCache} promotes the pet back out of the tier before the repository is
+ * asked, so every pet lives in at most one of the two levels.
+ */
+public interface PetCacheTier {
+
+	/**
+	 * Stores the pet, replacing a previous entry with the same id.
+	 */
+	void put(Pet pet);
+
+	/**
+	 * Removes the pet with the given id.
+	 * @return the removed pet, or {@code null} if the tier did not hold it
+	 */
+	Pet remove(Integer id);
+
+	/**
+	 * Removes every pet.
+	 */
+	void clear();
+
+}
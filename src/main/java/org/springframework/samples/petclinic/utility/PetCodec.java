@@ -0,0 +1,132 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetType;
+import org.springframework.samples.petclinic.visit.Visit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+
+/**
+ * A compact binary encoding of a {@link Pet} together with its type, the scalar fields of
+ * its owner and its visits.
+ * <p>
+ * Every value that may be {@code null} is preceded by a presence flag, dates are stored as
+ * epoch days. The owner is encoded without its other pets, a decoded pet's owner lists no
+ * pets.
+ */
+final class PetCodec {
+
+	private PetCodec() {
+	}
+
+	static byte[] encode(Pet pet) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			writeInteger(out, pet.getId());
+			writeString(out, pet.getName());
+			writeDate(out, pet.getBirthDate());
+			PetType type = pet.getType();
+			out.writeBoolean(type != null);
+			if (type != null) {
+				writeInteger(out, type.getId());
+				writeString(out, type.getName());
+			}
+			Owner owner = pet.getOwner();
+			out.writeBoolean(owner != null);
+			if (owner != null) {
+				writeInteger(out, owner.getId());
+				writeString(out, owner.getFirstName());
+				writeString(out, owner.getLastName());
+				writeString(out, owner.getAddress());
+				writeString(out, owner.getCity());
+				writeString(out, owner.getTelephone());
+			}
+			out.writeInt(pet.getVisits().size());
+			for (Visit visit : pet.getVisits()) {
+				writeInteger(out, visit.getId());
+				writeDate(out, visit.getDate());
+				writeString(out, visit.getDescription());
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	static Pet decode(byte[] encoded) {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded))) {
+			Pet pet = new Pet();
+			pet.setId(readInteger(in));
+			pet.setName(readString(in));
+			pet.setBirthDate(readDate(in));
+			if (in.readBoolean()) {
+				PetType type = new PetType();
+				type.setId(readInteger(in));
+				type.setName(readString(in));
+				pet.setType(type);
+			}
+			if (in.readBoolean()) {
+				Owner owner = new Owner();
+				owner.setId(readInteger(in));
+				owner.setFirstName(readString(in));
+				owner.setLastName(readString(in));
+				owner.setAddress(readString(in));
+				owner.setCity(readString(in));
+				owner.setTelephone(readString(in));
+				owner.addPet(pet);
+			}
+			int visits = in.readInt();
+			for (int i = 0; i < visits; i++) {
+				Visit visit = new Visit();
+				visit.setId(readInteger(in));
+				visit.setDate(readDate(in));
+				visit.setDescription(readString(in));
+				pet.addVisit(visit);
+			}
+			return pet;
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeInt(value);
+		}
+	}
+
+	private static Integer readInteger(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readInt() : null;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeDate(DataOutputStream out, LocalDate value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeLong(value.toEpochDay());
+		}
+	}
+
+	private static LocalDate readDate(DataInputStream in) throws IOException {
+		return in.readBoolean() ? LocalDate.ofEpochDay(in.readLong()) : null;
+	}
+
+}
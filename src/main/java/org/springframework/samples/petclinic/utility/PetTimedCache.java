@@ -3,97 +3,890 @@ package org.springframework.samples.petclinic.utility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.samples.petclinic.owner.Pet;
 import org.springframework.samples.petclinic.owner.PetRepository;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import java.text.SimpleDateFormat;
-	import java.util.Date;
-	import java.util.Map;
-	import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * A time based cache in front of {@link PetRepository}.
+ * <p>
+ * Entries expire {@code expiryInMillis} after they were loaded, as measured by a monotonic
+ * {@link Ticker} that is immune to wall clock adjustments. Expiration is checked
+ * lazily on every read and expired entries are reclaimed by a {@link TimerWheel} that is
+ * advanced while the cache is being used, so no background thread is needed and an idle
+ * cache uses no CPU.
+ * <p>
+ * The number of entries is bounded by {@code maximumSize}. Which entries are kept when
+ * the cache is full is decided by a {@link WindowTinyLfu} policy, so a scan over many
+ * rarely used pets does not push the frequently used ones out.
+ * <p>
+ * Each entry holds the pet together with its expiry in a single map. The expiry order and
+ * the eviction policy are split into shards by key, each with its own lock, so threads
+ * working on different pets rarely contend. Large caches use about two shards per
+ * processor, and each shard holds its share of {@code maximumSize}. Small caches use fewer
+ * shards so that the maximum size stays exact.
+ * <p>
+ * Concurrent misses for the same pet are collapsed into a single
+ * {@link PetRepository#findById(Integer)} call whose result is shared by all callers.
+ * {@link #getAll(Collection)} loads all missing pets with one query.
+ * <p>
+ * {@link #save(Pet)} invalidates the cached entry, so a pet is always read back as it was
+ * written. Because of that the expiry only bounds how long changes made outside of this
+ * cache stay invisible, and can be set generously.
+ * <p>
+ * Optionally entries are refreshed ahead of their expiry: a read of an entry older than
+ * {@code refreshAfterMillis} returns the cached pet and reloads it in the background. With
+ * a {@code staleGraceMillis} window an expired entry keeps being served for that long
+ * while it is reloaded, also when the reload fails, so a slow or failing database does not
+ * turn into slow or failing page loads. Background reloads run on a small bounded pool
+ * whose threads stop when idle.
+ * <p>
+ * With a {@code negativeExpiryMillis} window, ids the repository has no pet for are
+ * remembered for that long in a small bounded set of their own, so repeated lookups of
+ * deleted or made up ids do not reach the database. Saving a pet forgets its id.
+ * <p>
+ * Hits, misses, loads and evictions are counted in {@link #stats()} and published to the
+ * actuator by {@link PetTimedCacheMetrics}.
+ * <p>
+ * With a {@code snapshotFile} configured, the cached keys and their access frequencies are
+ * written to that file on {@link #close()}, and the next instance prefetches them in
+ * batches on startup, so a restart does not begin with a cold cache.
+ * <p>
+ * With a {@link PetCacheTier} set the cache is the small first level of a two level
+ * cache. Pets evicted because the cache is full are demoted into the second tier, and a
+ * miss takes the pet out of the second tier before asking the repository, so a pet is
+ * held by at most one level. Expired pets are not demoted, the second tier has an expiry
+ * of its own.
  *
  * @author Vivekananthan M
  */
 @Component
-public class PetTimedCache {
+public class PetTimedCache implements AutoCloseable {
 
 	private final static Logger log = LoggerFactory.getLogger(PetTimedCache.class);
 	private final PetRepository repository;
 
-	private Map<Integer, Long> timeMap = new ConcurrentHashMap<Integer, Long>();
-	private Map<Integer, Pet> actualMap = new ConcurrentHashMap<Integer, Pet>();
+	private final ConcurrentHashMap<Integer, Node> data = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, CompletableFuture<Pet>> loads = new ConcurrentHashMap<>();
 
-	private long expiryInMillis = 10000;
-	private static final SimpleDateFormat SIMPLE_DATE_FORMAT = new SimpleDateFormat("hh:mm:ss:SSS");
+	// shards hold at least this many entries, a small cache is split into fewer shards
+	private static final int MIN_SHARD_SIZE = 256;
+	private static final int MAX_SHARDS = 64;
+
+	private final Ticker ticker;
+	private volatile Shard[] shards;
+	private volatile long maximumSize = 10000;
+	private final PetCacheStats stats = new PetCacheStats();
+
+	private long expiryNanos = TimeUnit.SECONDS.toNanos(10);
+	private long refreshAfterNanos = 0;
+	private long staleGraceNanos = 0;
+	private long negativeExpiryNanos = 0;
+	private final MissingPetIds missingIds = new MissingPetIds(1000);
+
+	private volatile ThreadPoolExecutor refreshExecutor;
+
+	private static final int WARM_UP_BATCH_SIZE = 100;
+	private Path snapshotFile;
+
+	private volatile PetCacheTier secondTier;
+	// pets evicted with a shard lock held, moved into the second tier after it is
+	// released; the monitor orders draining against removing written pets from the tier
+	private final ConcurrentLinkedQueue<Pet> demotions = new ConcurrentLinkedQueue<>();
+	private final Object demotionLock = new Object();
 
 	@Autowired
 	public PetTimedCache(PetRepository repository) {
-		this.repository = repository;
-		initialize();
+		this(10000, repository);
 	}
 
 	public PetTimedCache(long expiryInMillis, PetRepository repository) {
-		this.expiryInMillis = expiryInMillis;
+		this(expiryInMillis, repository, Ticker.systemTicker());
+	}
+
+	public PetTimedCache(long expiryInMillis, PetRepository repository, Ticker ticker) {
+		this.expiryNanos = TimeUnit.MILLISECONDS.toNanos(expiryInMillis);
 		this.repository = repository;
-		initialize();
+		this.ticker = ticker;
+		this.shards = newShards(maximumSize);
 	}
 
-	void initialize() {
-		new CleanerThread().start();
+	/**
+	 * Sets the maximum number of entries, evicting entries right away if the cache is
+	 * already larger. The number of shards follows the maximum size only while the cache
+	 * is empty, later on the shards keep their number and just hold a different share.
+	 */
+	@Value("${petclinic.cache.pets.maximum-size:10000}")
+	public void setMaximumSize(long maximumSize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive");
+		}
+		this.maximumSize = maximumSize;
+		Shard[] current = shards;
+		if (data.isEmpty() && current.length != shardCount(maximumSize)) {
+			shards = newShards(maximumSize);
+			return;
+		}
+		long shardSize = shardSize(maximumSize, current.length);
+		for (Shard shard : current) {
+			shard.lock.lock();
+			try {
+				shard.policy.setMaximumSize(shardSize);
+				shard.policy.evict(shard::evictBySize);
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		drainDemotions();
 	}
 
-	private Pet put(Pet pet) {
-		Integer key = pet.getId();
-		Date date = new Date();
-		timeMap.put(key, date.getTime());
-		log.info("Inserting : " + SIMPLE_DATE_FORMAT.format(date) + " : " + key + " : " + pet);
-		Pet returnVal = actualMap.put(key, pet);
-		return returnVal;
+	@Value("${petclinic.cache.pets.expiry-millis:10000}")
+	public void setExpiryInMillis(long expiryInMillis) {
+		this.expiryNanos = TimeUnit.MILLISECONDS.toNanos(expiryInMillis);
+	}
+
+	/**
+	 * Sets the age after which a read reloads the entry in the background, {@code 0}
+	 * disables refreshing ahead of the expiry.
+	 */
+	@Value("${petclinic.cache.pets.refresh-after-millis:0}")
+	public void setRefreshAfterMillis(long refreshAfterMillis) {
+		this.refreshAfterNanos = TimeUnit.MILLISECONDS.toNanos(refreshAfterMillis);
+	}
+
+	/**
+	 * Sets how long an expired entry is still served while it is reloaded in the
+	 * background, {@code 0} disables serving stale entries.
+	 */
+	@Value("${petclinic.cache.pets.stale-grace-millis:0}")
+	public void setStaleGraceMillis(long staleGraceMillis) {
+		this.staleGraceNanos = TimeUnit.MILLISECONDS.toNanos(staleGraceMillis);
+	}
+
+	/**
+	 * Sets how long an id the repository has no pet for is answered without asking it
+	 * again, {@code 0} disables caching missing pets.
+	 */
+	@Value("${petclinic.cache.pets.negative-expiry-millis:0}")
+	public void setNegativeExpiryMillis(long negativeExpiryMillis) {
+		this.negativeExpiryNanos = TimeUnit.MILLISECONDS.toNanos(negativeExpiryMillis);
+		if (negativeExpiryNanos == 0) {
+			missingIds.clear();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of missing ids remembered.
+	 */
+	@Value("${petclinic.cache.pets.negative-maximum-size:1000}")
+	public void setNegativeMaximumSize(int negativeMaximumSize) {
+		if (negativeMaximumSize <= 0) {
+			throw new IllegalArgumentException("negativeMaximumSize must be positive");
+		}
+		missingIds.setMaximumSize(negativeMaximumSize);
+	}
+
+	/**
+	 * Sets the file the hot keys are written to on shutdown and read from on startup, an
+	 * empty value disables the snapshot.
+	 */
+	@Value("${petclinic.cache.pets.snapshot-file:}")
+	public void setSnapshotFile(String snapshotFile) {
+		this.snapshotFile = (snapshotFile == null || snapshotFile.isEmpty()) ? null : Paths.get(snapshotFile);
+	}
+
+	/**
+	 * Sets the second level pets are demoted into when this cache is full, {@code null}
+	 * drops evicted pets.
+	 */
+	@Autowired(required = false)
+	public void setSecondTier(PetCacheTier secondTier) {
+		this.secondTier = secondTier;
+	}
+
+	/**
+	 * Starts warming the cache from the snapshot file in the background, if there is one.
+	 */
+	@PostConstruct
+	public void scheduleWarmUp() {
+		if (snapshotFile != null && Files.exists(snapshotFile)) {
+			try {
+				refreshExecutor().execute(this::warmUp);
+			} catch (RejectedExecutionException ex) {
+				log.warn("Could not schedule warming the pet cache", ex);
+			}
+		}
+	}
+
+	/**
+	 * Loads the pets listed in the snapshot file, hottest first and in batches of
+	 * {@value #WARM_UP_BATCH_SIZE}, and restores their access frequencies.
+	 */
+	public void warmUp() {
+		PetCacheSnapshot snapshot;
+		try {
+			snapshot = PetCacheSnapshot.read(snapshotFile);
+		} catch (IOException ex) {
+			log.warn("Could not read pet cache snapshot {}", snapshotFile, ex);
+			return;
+		}
+		int count = (int) Math.min(snapshot.size(), maximumSize);
+		for (int i = 0; i < count; i++) {
+			Shard shard = shardFor(snapshot.key(i));
+			shard.lock.lock();
+			try {
+				shard.policy.recordFrequency(Integer.hashCode(snapshot.key(i)), snapshot.frequency(i));
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		List<Integer> batch = new ArrayList<>(WARM_UP_BATCH_SIZE);
+		for (int i = 0; i < count; i++) {
+			batch.add(snapshot.key(i));
+			if (batch.size() == WARM_UP_BATCH_SIZE || i == count - 1) {
+				try {
+					getAll(batch);
+				} catch (RuntimeException ex) {
+					log.warn("Warming the pet cache failed after {} of {} pets", i + 1 - batch.size(), count, ex);
+					return;
+				}
+				batch.clear();
+			}
+		}
+		log.info("Warmed the pet cache with {} pets from {}", count, snapshotFile);
 	}
 
 	public Pet get(Integer key) {
-		if(actualMap.containsKey(key)) {
-			log.info("cache hit");
-			return actualMap.get(key);
-		} else {
-			log.info("cache miss");
-			Pet pet = repository.findById(key);
-			if(pet != null) {
-				put(pet);
+		long now = currentTime();
+		Pet cached = getIfPresent(key, now);
+		if (cached != null) {
+			return cached;
+		}
+		if (isKnownMissing(key, now)) {
+			stats.recordHit();
+			return null;
+		}
+		stats.recordMiss();
+		return load(key);
+	}
+
+	/**
+	 * Returns the pets with the given ids. Cached pets are returned right away, ids known
+	 * to have no pet are skipped, all others are loaded with a single {@link PetRepository#findByIdIn(Collection)} query, except
+	 * those another thread is loading already, whose loads are awaited instead.
+	 * @param keys the ids of the pets
+	 * @return the pets found by their id, ids without a pet are left out
+	 */
+	public Map<Integer, Pet> getAll(Collection<Integer> keys) {
+		Map<Integer, Pet> result = new LinkedHashMap<>();
+		Map<Integer, CompletableFuture<Pet>> batch = new LinkedHashMap<>();
+		Map<Integer, CompletableFuture<Pet>> awaited = new LinkedHashMap<>();
+		long now = currentTime();
+		for (Integer key : keys) {
+			if (key == null || result.containsKey(key) || batch.containsKey(key) || awaited.containsKey(key)) {
+				continue;
 			}
-			return pet;
+			Pet cached = getIfPresent(key, now);
+			if (cached != null) {
+				result.put(key, cached);
+				continue;
+			}
+			if (isKnownMissing(key, now)) {
+				stats.recordHit();
+				continue;
+			}
+			stats.recordMiss();
+			CompletableFuture<Pet> loading = new CompletableFuture<>();
+			CompletableFuture<Pet> inFlight = loads.putIfAbsent(key, loading);
+			if (inFlight != null) {
+				awaited.put(key, inFlight);
+			} else {
+				batch.put(key, loading);
+			}
+		}
+		if (!batch.isEmpty()) {
+			loadAllAndCache(batch);
+			batch.forEach((key, loading) -> {
+				Pet pet = loading.getNow(null);
+				if (pet != null) {
+					result.put(key, pet);
+				}
+			});
 		}
+		awaited.forEach((key, inFlight) -> {
+			Pet pet;
+			try {
+				pet = await(inFlight);
+			} catch (CancellationException ex) {
+				pet = load(key);
+			}
+			if (pet != null) {
+				result.put(key, pet);
+			}
+		});
+		return result;
 	}
 
+	/**
+	 * Returns the cached pet, if it is present and not expired, recording the access.
+	 */
+	private Pet getIfPresent(Integer key, long now) {
+		Node node = data.get(key);
+		if (node != null && node.expiresAt - now > 0) {
+			stats.recordHit();
+			// a busy lock means another thread is maintaining the shard, losing this
+			// access in the policy is cheaper than waiting for it
+			Shard shard = shardFor(key);
+			if (shard.lock.tryLock()) {
+				try {
+					shard.policy.recordAccess(node);
+					if (now - shard.timerWheel.time() >= TimerWheel.SPANS[0]) {
+						shard.timerWheel.advance(now, shard::evict);
+					}
+				} finally {
+					shard.lock.unlock();
+				}
+			}
+			long age = now - node.loadedAt;
+			if (age >= expiryNanos || (refreshAfterNanos > 0 && age >= refreshAfterNanos)) {
+				refresh(key);
+			}
+			return node.value;
+		}
+		return null;
+	}
+
+	private boolean isKnownMissing(Integer key, long now) {
+		return negativeExpiryNanos > 0 && missingIds.contains(key, now);
+	}
+
+	/**
+	 * Saves the pet and invalidates its cached entry. A load that was already running for
+	 * the pet is not allowed to put its result, which may predate the write, into the
+	 * cache. When called within a transaction the entry is invalidated once more after the
+	 * transaction completed, since readers may have cached the previous state until then.
+	 */
 	public void save(Pet pet) {
-		repository.save(pet);
+		try {
+			repository.save(pet);
+		} finally {
+			Integer key = pet.getId();
+			if (key != null) {
+				invalidateAfterWrite(key);
+			}
+		}
+	}
+
+	/**
+	 * Discards the cached entry for the given key, if any, from both levels, and forgets
+	 * that the key had no pet.
+	 */
+	public void invalidate(Integer key) {
+		Shard shard = shardFor(key);
+		shard.lock.lock();
+		try {
+			shard.remove(key);
+			missingIds.remove(key);
+		} finally {
+			shard.lock.unlock();
+		}
+		discardDemoted(key);
+	}
+
+	private void invalidateAfterWrite(Integer key) {
+		discardWritten(key);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					discardWritten(key);
+				}
+			});
+		}
+	}
+
+	private void discardWritten(Integer key) {
+		Shard shard = shardFor(key);
+		shard.lock.lock();
+		try {
+			// a load that started before the write sees that it is no longer registered
+			loads.remove(key);
+			shard.remove(key);
+			missingIds.remove(key);
+		} finally {
+			shard.lock.unlock();
+		}
+		discardDemoted(key);
+	}
+
+	// after the pet left the first level, so it can not be demoted again
+	private void discardDemoted(Integer key) {
+		PetCacheTier tier = secondTier;
+		if (tier == null) {
+			return;
+		}
+		synchronized (demotionLock) {
+			demotions.removeIf(pet -> key.equals(pet.getId()));
+			try {
+				tier.remove(key);
+			} catch (RuntimeException ex) {
+				log.warn("Could not remove pet {} from the second cache tier", key, ex);
+			}
+		}
+	}
+
+	/**
+	 * @return the live statistics of this cache
+	 */
+	public PetCacheStats stats() {
+		return stats;
+	}
+
+	/**
+	 * @return the number of entries currently held, including expired entries that were
+	 * not reclaimed yet
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * Discards every entry. The cache can still be used afterwards. The second tier is
+	 * left as it is, it is owned by its cache manager.
+	 */
+	@PreDestroy
+	@Override
+	public void close() {
+		ThreadPoolExecutor executor = refreshExecutor;
+		if (executor != null) {
+			refreshExecutor = null;
+			executor.shutdownNow();
+		}
+		// refreshes dropped from the queue would never complete, waiters load again
+		loads.values().forEach(loading -> loading.cancel(false));
+		loads.clear();
+		demotions.clear();
+		missingIds.clear();
+		if (snapshotFile != null) {
+			try {
+				takeSnapshot().write(snapshotFile);
+			} catch (IOException ex) {
+				log.warn("Could not write pet cache snapshot {}", snapshotFile, ex);
+			}
+		}
+		Shard[] current = shards;
+		for (Shard shard : current) {
+			shard.lock.lock();
+		}
+		try {
+			data.clear();
+			for (Shard shard : current) {
+				shard.timerWheel.clear();
+				shard.policy.clear();
+			}
+		} finally {
+			for (Shard shard : current) {
+				shard.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Loads the pet from the repository, unless another thread is already loading it, in
+	 * which case its result is awaited instead.
+	 */
+	private Pet load(Integer key) {
+		CompletableFuture<Pet> loading = new CompletableFuture<>();
+		CompletableFuture<Pet> inFlight = loads.putIfAbsent(key, loading);
+		if (inFlight != null) {
+			try {
+				return await(inFlight);
+			} catch (CancellationException ex) {
+				// a refresh that could not be scheduled
+				return load(key);
+			}
+		}
+		// the previous load may have completed between our read and registering ours
+		Node node = data.get(key);
+		if (node != null && node.expiresAt - currentTime() > 0) {
+			loads.remove(key, loading);
+			loading.complete(node.value);
+			return node.value;
+		}
+		return loadAndCache(key, loading);
+	}
+
+	/**
+	 * Reloads the pet in the background, unless it is being loaded already. The cached
+	 * pet stays in place until the reload succeeded.
+	 */
+	private void refresh(Integer key) {
+		CompletableFuture<Pet> loading = new CompletableFuture<>();
+		if (loads.containsKey(key) || loads.putIfAbsent(key, loading) != null) {
+			return;
+		}
+		try {
+			refreshExecutor().execute(() -> {
+				try {
+					loadAndCache(key, loading);
+				} catch (RuntimeException ex) {
+					log.warn("Refreshing pet {} failed, the cached pet is still served", key, ex);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			loads.remove(key, loading);
+			loading.cancel(false);
+		}
+	}
+
+	private Pet loadAndCache(Integer key, CompletableFuture<Pet> loading) {
+		try {
+			Pet pet = promote(key);
+			if (pet == null) {
+				long start = System.nanoTime();
+				try {
+					pet = repository.findById(key);
+					stats.recordLoadSuccess(System.nanoTime() - start);
+				} catch (RuntimeException | Error ex) {
+					stats.recordLoadFailure(System.nanoTime() - start);
+					throw ex;
+				}
+			}
+			if (pet != null) {
+				put(pet, loading, currentTime());
+			} else {
+				putMissing(key, loading, currentTime());
+			}
+			loading.complete(pet);
+			return pet;
+		} catch (RuntimeException | Error ex) {
+			loading.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			// only after the result is in the cache, so later readers either hit or wait
+			loads.remove(key, loading);
+		}
+	}
+
+	private void loadAllAndCache(Map<Integer, CompletableFuture<Pet>> batch) {
+		try {
+			Set<Integer> missing = new LinkedHashSet<>();
+			for (Map.Entry<Integer, CompletableFuture<Pet>> entry : batch.entrySet()) {
+				Pet promoted = promote(entry.getKey());
+				if (promoted != null) {
+					put(promoted, entry.getValue(), currentTime());
+					entry.getValue().complete(promoted);
+				} else {
+					missing.add(entry.getKey());
+				}
+			}
+			if (!missing.isEmpty()) {
+				List<Pet> pets;
+				long start = System.nanoTime();
+				try {
+					pets = repository.findByIdIn(missing);
+					stats.recordLoadSuccess(System.nanoTime() - start);
+				} catch (RuntimeException | Error ex) {
+					stats.recordLoadFailure(System.nanoTime() - start);
+					throw ex;
+				}
+				long now = currentTime();
+				for (Pet pet : pets) {
+					CompletableFuture<Pet> loading = batch.get(pet.getId());
+					if (loading != null && !loading.isDone()) {
+						put(pet, loading, now);
+						loading.complete(pet);
+					}
+				}
+			}
+			long now = currentTime();
+			batch.forEach((key, loading) -> {
+				if (!loading.isDone()) {
+					putMissing(key, loading, now);
+					loading.complete(null);
+				}
+			});
+		} catch (RuntimeException | Error ex) {
+			batch.values().forEach(loading -> loading.completeExceptionally(ex));
+			throw ex;
+		} finally {
+			batch.forEach(loads::remove);
+		}
+	}
+
+	/**
+	 * Takes the pet out of the second tier, if it holds it.
+	 */
+	private Pet promote(Integer key) {
+		PetCacheTier tier = secondTier;
+		if (tier == null) {
+			return null;
+		}
+		try {
+			return tier.remove(key);
+		} catch (RuntimeException ex) {
+			log.warn("Could not read pet {} from the second cache tier", key, ex);
+			return null;
+		}
 	}
 
-	class CleanerThread extends Thread {
-		@Override
-		public void run() {
-			log.info("Initiating Cleaner Thread...");
-			while (true) {
-				cleanMap();
+	private void drainDemotions() {
+		PetCacheTier tier = secondTier;
+		if (tier == null || demotions.isEmpty()) {
+			return;
+		}
+		synchronized (demotionLock) {
+			Pet pet;
+			while ((pet = demotions.poll()) != null) {
 				try {
-					Thread.sleep(expiryInMillis / 2);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+					tier.put(pet);
+				} catch (RuntimeException ex) {
+					log.warn("Could not demote pet {} to the second cache tier", pet.getId(), ex);
 				}
 			}
 		}
+	}
+
+	private static Pet await(CompletableFuture<Pet> inFlight) {
+		try {
+			return inFlight.join();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw ex;
+		}
+	}
+
+	private ThreadPoolExecutor refreshExecutor() {
+		ThreadPoolExecutor executor = refreshExecutor;
+		if (executor == null) {
+			synchronized (this) {
+				executor = refreshExecutor;
+				if (executor == null) {
+					AtomicInteger threadNumber = new AtomicInteger();
+					executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1024),
+							runnable -> {
+								Thread thread = new Thread(runnable, "pet-cache-refresh-" + threadNumber.incrementAndGet());
+								thread.setDaemon(true);
+								return thread;
+							});
+					executor.allowCoreThreadTimeOut(true);
+					refreshExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	private PetCacheSnapshot takeSnapshot() {
+		long[] entries = new long[data.size()];
+		int count = 0;
+		for (Node node : data.values()) {
+			if (count == entries.length) {
+				break;
+			}
+			Shard shard = shardFor(node.key);
+			int frequency;
+			shard.lock.lock();
+			try {
+				frequency = shard.policy.frequency(node.hash);
+			} finally {
+				shard.lock.unlock();
+			}
+			// frequency in the high bits, so sorting orders by frequency
+			entries[count++] = ((long) frequency << 32) | (node.key & 0xffffffffL);
+		}
+		entries = Arrays.copyOf(entries, count);
+		Arrays.sort(entries);
+		int[] keys = new int[entries.length];
+		byte[] frequencies = new byte[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			long entry = entries[entries.length - 1 - i];
+			keys[i] = (int) entry;
+			frequencies[i] = (byte) (entry >>> 32);
+		}
+		return new PetCacheSnapshot(keys, frequencies);
+	}
+
+	private void put(Pet pet, CompletableFuture<Pet> loading, long now) {
+		Integer key = pet.getId();
+		Node node = new Node(key, pet, now, now + expiryNanos + staleGraceNanos);
+		Shard shard = shardFor(key);
+		shard.lock.lock();
+		try {
+			if (loads.get(key) != loading) {
+				// the pet was saved while we were loading it
+				return;
+			}
+			shard.timerWheel.advance(now, shard::evict);
+			Node previous = data.put(key, node);
+			if (previous != null) {
+				shard.timerWheel.deschedule(previous);
+				shard.policy.remove(previous);
+			}
+			shard.timerWheel.schedule(node);
+			shard.policy.add(node, shard::evictBySize);
+			stats.recordPut();
+		} finally {
+			shard.lock.unlock();
+		}
+		log.debug("Inserting : {} : {}", key, pet);
+		drainDemotions();
+	}
+
+	/**
+	 * Drops the cached entry of a pet the repository no longer has and remembers that it is
+	 * missing, unless the pet was saved while it was being loaded.
+	 */
+	private void putMissing(Integer key, CompletableFuture<Pet> loading, long now) {
+		Shard shard = shardFor(key);
+		shard.lock.lock();
+		try {
+			shard.remove(key);
+			if (negativeExpiryNanos > 0 && loads.get(key) == loading) {
+				missingIds.add(key, now + negativeExpiryNanos);
+			}
+		} finally {
+			shard.lock.unlock();
+		}
+		discardDemoted(key);
+	}
+
+	private long currentTime() {
+		return ticker.read();
+	}
+
+	private Shard shardFor(int key) {
+		Shard[] current = shards;
+		// spread sequential ids over the shards
+		int hash = key * 0x9E3779B9;
+		return current[(hash ^ (hash >>> 16)) & (current.length - 1)];
+	}
+
+	private Shard[] newShards(long maximumSize) {
+		int count = shardCount(maximumSize);
+		long shardSize = shardSize(maximumSize, count);
+		long now = currentTime();
+		Shard[] created = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			created[i] = new Shard(shardSize, now);
+		}
+		return created;
+	}
+
+	private static int shardCount(long maximumSize) {
+		long bySize = Math.max(1, maximumSize / MIN_SHARD_SIZE);
+		long byProcessors = 2L * Runtime.getRuntime().availableProcessors();
+		return Integer.highestOneBit((int) Math.min(MAX_SHARDS, Math.min(bySize, byProcessors)));
+	}
+
+	private static long shardSize(long maximumSize, int shardCount) {
+		return (maximumSize + shardCount - 1) / shardCount;
+	}
+
+	/**
+	 * The expiry order and eviction policy of the entries whose keys hash to it.
+	 */
+	private final class Shard {
+
+		// guards the timer wheel, the eviction policy and every structural change of the
+		// entries of this shard in data
+		final ReentrantLock lock = new ReentrantLock();
+
+		final TimerWheel timerWheel;
+
+		final WindowTinyLfu policy;
+
+		Shard(long maximumSize, long now) {
+			this.timerWheel = new TimerWheel(now);
+			this.policy = new WindowTinyLfu(maximumSize);
+		}
+
+		// called with the lock held
+		void remove(Integer key) {
+			Node node = data.remove(key);
+			if (node != null) {
+				timerWheel.deschedule(node);
+				policy.remove(node);
+			}
+		}
 
-		private void cleanMap() {
-			long currentTime = new Date().getTime();
-			for (Integer key : timeMap.keySet()) {
-				if (currentTime > (timeMap.get(key) + expiryInMillis)) {
-					Pet value = actualMap.remove(key);
-					timeMap.remove(key);
-					log.info("Removing : " + SIMPLE_DATE_FORMAT.format(new Date()) + " : " + key + " : " + value);
+		// called by the timer wheel with the lock held
+		boolean evict(TimerWheel.Node expired) {
+			Node node = (Node) expired;
+			if (data.remove(node.key, node)) {
+				policy.remove(node);
+				stats.recordEviction();
+				log.debug("Removing : {} : {}", node.key, node.value);
+			}
+			return true;
+		}
+
+		// called by the eviction policy with the lock held
+		void evictBySize(WindowTinyLfu.Node evicted) {
+			Node node = (Node) evicted;
+			if (data.remove(node.key, node)) {
+				timerWheel.deschedule(node);
+				stats.recordEviction();
+				log.debug("Evicting : {} : {}", node.key, node.value);
+				if (secondTier != null) {
+					demotions.add(node.value);
 				}
 			}
 		}
+
 	}
+
+	/**
+	 * A cached pet together with its load time. The expiration time includes the stale
+	 * grace window, the entry is fresh for {@code expiryNanos} after loading.
+	 */
+	private static final class Node extends WindowTinyLfu.Node {
+
+		final Integer key;
+
+		final Pet value;
+
+		final long loadedAt;
+
+		Node(Integer key, Pet value, long loadedAt, long expiresAt) {
+			super(key.hashCode());
+			this.key = key;
+			this.value = value;
+			this.loadedAt = loadedAt;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
 }
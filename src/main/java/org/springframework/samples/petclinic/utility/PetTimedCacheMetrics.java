@@ -0,0 +1,66 @@
+package org.springframework.samples.petclinic.utility;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.cache.CacheMeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the {@link PetCacheStats} of the {@link PetTimedCache} as the standard
+ * Micrometer cache meters ({@code cache.gets}, {@code cache.puts}, {@code cache.evictions},
+ * {@code cache.size}) tagged with {@code cache=pets}, plus the load counters and load
+ * duration. Spring Boot binds every {@code MeterBinder} bean to the actuator registry.
+ */
+@Component
+public class PetTimedCacheMetrics extends CacheMeterBinder {
+
+	private final PetTimedCache cache;
+
+	public PetTimedCacheMetrics(PetTimedCache cache) {
+		super(cache, "pets", Tags.empty());
+		this.cache = cache;
+	}
+
+	@Override
+	protected Long size() {
+		return (long) cache.size();
+	}
+
+	@Override
+	protected long hitCount() {
+		return cache.stats().hitCount();
+	}
+
+	@Override
+	protected Long missCount() {
+		return cache.stats().missCount();
+	}
+
+	@Override
+	protected Long evictionCount() {
+		return cache.stats().evictionCount();
+	}
+
+	@Override
+	protected long putCount() {
+		return cache.stats().putCount();
+	}
+
+	@Override
+	protected void bindImplementationSpecificMetrics(MeterRegistry registry) {
+		FunctionCounter.builder("cache.load", cache, c -> c.stats().loadSuccessCount())
+			.tags(getTagsWithCacheName()).tag("result", "success")
+			.description("The number of times a pet was loaded from the repository").register(registry);
+		FunctionCounter.builder("cache.load", cache, c -> c.stats().loadFailureCount())
+			.tags(getTagsWithCacheName()).tag("result", "failure")
+			.description("The number of times loading a pet from the repository failed").register(registry);
+		TimeGauge.builder("cache.load.duration", cache, TimeUnit.NANOSECONDS, c -> c.stats().totalLoadTime())
+			.tags(getTagsWithCacheName()).description("The time spent loading pets from the repository")
+			.register(registry);
+	}
+
+}
@@ -0,0 +1,40 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * One {@link IdentityMap} per entity type for the web request being handled, kept as an
+ * attribute of that request, so an entity loaded once while handling a request is reused
+ * instead of loaded again for the rest of it. The maps are dropped with the request.
+ * <p>
+ * The maps are not thread-safe, they are meant for the thread handling the request.
+ */
+public final class RequestIdentityMaps {
+
+	private static final String ATTRIBUTE_PREFIX = RequestIdentityMaps.class.getName() + ".";
+
+	private RequestIdentityMaps() {
+	}
+
+	/**
+	 * @return the identity map for entities of the type in the current request, or
+	 * {@code null} if the current thread is not handling a request
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E extends BaseEntity> IdentityMap<E> of(Class<E> type) {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		if (attributes == null) {
+			return null;
+		}
+		String name = ATTRIBUTE_PREFIX + type.getName();
+		IdentityMap<E> entities = (IdentityMap<E>) attributes.getAttribute(name, RequestAttributes.SCOPE_REQUEST);
+		if (entities == null) {
+			entities = new IdentityMap<>();
+			attributes.setAttribute(name, entities, RequestAttributes.SCOPE_REQUEST);
+		}
+		return entities;
+	}
+
+}
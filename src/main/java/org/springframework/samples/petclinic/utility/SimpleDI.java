@@ -10,18 +10,29 @@ import java.util.concurrent.Callable;
  */
 public abstract class SimpleDI {
 
-	private static MyDI DIContainer = null;
+	// created when first asked for, class initialization publishes it safely to all threads
+	private static class ContainerHolder {
+		static final MyDI DIContainer = new MyDI();
+	}
+
 	static SimpleDI getDIContainer() {
-		if (DIContainer == null){
-			DIContainer = new MyDI();
-			return DIContainer;
-		}
-		return DIContainer;
+		return ContainerHolder.DIContainer;
 	}
 
 	public abstract void provideByInstance(Class<?> typeClass, Object instanceOfType);
 
 	public abstract void provideByAConstructorFunction(Class<?> typeClass, Callable<Object> providerFunction);
 
+	/**
+	 * provides the same instance on every lookup, made by the function on the first one
+	 */
+	public abstract void provideSingleton(Class<?> typeClass, Callable<Object> providerFunction);
+
+	/**
+	 * provides a new instance of the implementation on every lookup, made with its
+	 * constructor from the instances provided for the constructor parameters
+	 */
+	public abstract void provideByAutowiring(Class<?> typeClass, Class<?> implementationClass);
+
 	public abstract Object getInstanceOf(Class<?> requiredType) throws Exception;
 }
@@ -0,0 +1,23 @@
+package org.springframework.samples.petclinic.utility;
+
+/**
+ * A time source measuring elapsed time in nanoseconds, used by {@link PetTimedCache} to
+ * expire entries. Unlike the wall clock it is not affected by clock adjustments, and it can
+ * be replaced in tests to move time forward without sleeping.
+ */
+@FunctionalInterface
+public interface Ticker {
+
+	/**
+	 * @return the nanoseconds elapsed since an arbitrary, fixed origin
+	 */
+	long read();
+
+	/**
+	 * @return a ticker backed by {@link System#nanoTime()}
+	 */
+	static Ticker systemTicker() {
+		return System::nanoTime;
+	}
+
+}
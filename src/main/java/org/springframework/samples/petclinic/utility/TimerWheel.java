@@ -0,0 +1,177 @@
+package org.springframework.samples.petclinic.utility;
+
+import java.util.function.Predicate;
+
+/**
+ * A hierarchical timer wheel used to expire cache entries in amortized O(1) time.
+ * <p>
+ * Each level is a ring of buckets; a bucket on level {@code i} covers {@code SPANS[i]}
+ * nanoseconds. An entry is scheduled into the coarsest level whose ring still covers its
+ * remaining lifetime and cascades down to finer levels as the wheel turns, so advancing
+ * the wheel only visits the buckets whose time has come instead of every entry. The wheel
+ * has no thread of its own: it is advanced by its owner during regular cache operations,
+ * which means an idle cache costs nothing.
+ * <p>
+ * This class is not thread-safe, callers must guard it with a lock.
+ */
+final class TimerWheel {
+
+	static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+
+	// ~17ms, ~1.07s, ~1.15m, ~36.7m, ~2.4h
+	static final long[] SPANS = { 1L << 24, 1L << 30, 1L << 36, 1L << 41, 1L << 43, 1L << 43 };
+
+	static final long[] SHIFT = { 24, 30, 36, 41, 43 };
+
+	private final Node[][] wheel;
+
+	// ticker values have an arbitrary origin and may be negative, the wheel works on the
+	// time elapsed since it was created so that bucket indexes are computed from positive
+	// values only
+	private final long origin;
+
+	private long time;
+
+	TimerWheel(long currentTime) {
+		this.origin = currentTime;
+		this.time = currentTime;
+		this.wheel = new Node[BUCKETS.length][];
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i] = new Node[BUCKETS[i]];
+			for (int j = 0; j < wheel[i].length; j++) {
+				wheel[i][j] = new Sentinel();
+			}
+		}
+	}
+
+	/**
+	 * @return the time the wheel was last advanced to
+	 */
+	long time() {
+		return time;
+	}
+
+	/**
+	 * Advances the wheel to {@code currentTime}, handing every entry whose expiration time
+	 * has passed to {@code evictor}. Entries the evictor declines (returns {@code false}
+	 * for) are rescheduled.
+	 */
+	void advance(long currentTime, Predicate<Node> evictor) {
+		long previousTime = time;
+		if (currentTime - previousTime <= 0) {
+			return;
+		}
+		time = currentTime;
+		for (int i = 0; i < SHIFT.length; i++) {
+			long previousTicks = (previousTime - origin) >>> SHIFT[i];
+			long currentTicks = (currentTime - origin) >>> SHIFT[i];
+			if (currentTicks - previousTicks <= 0) {
+				break;
+			}
+			expire(i, previousTicks, currentTicks, evictor);
+		}
+	}
+
+	private void expire(int level, long previousTicks, long currentTicks, Predicate<Node> evictor) {
+		Node[] buckets = wheel[level];
+		int mask = buckets.length - 1;
+		long steps = Math.min(currentTicks - previousTicks, buckets.length - 1);
+		for (long tick = currentTicks - steps; tick <= currentTicks; tick++) {
+			Node sentinel = buckets[(int) (tick & mask)];
+			Node node = sentinel.next;
+			sentinel.prev = sentinel;
+			sentinel.next = sentinel;
+			while (node != sentinel) {
+				Node next = node.next;
+				node.prev = null;
+				node.next = null;
+				if ((node.expiresAt - time > 0) || !evictor.test(node)) {
+					schedule(node);
+				}
+				node = next;
+			}
+		}
+	}
+
+	/**
+	 * Adds the entry to the bucket covering its expiration time. The entry must not be
+	 * scheduled already.
+	 */
+	void schedule(Node node) {
+		Node sentinel = findBucket(node.expiresAt);
+		node.prev = sentinel.prev;
+		node.next = sentinel;
+		sentinel.prev.next = node;
+		sentinel.prev = node;
+	}
+
+	/**
+	 * Removes the entry from the wheel, if it is scheduled.
+	 */
+	void deschedule(Node node) {
+		if (node.next != null) {
+			unlink(node);
+			node.prev = null;
+			node.next = null;
+		}
+	}
+
+	/**
+	 * Drops every scheduled entry.
+	 */
+	void clear() {
+		for (Node[] buckets : wheel) {
+			for (Node sentinel : buckets) {
+				Node node = sentinel.next;
+				while (node != sentinel) {
+					Node next = node.next;
+					node.prev = null;
+					node.next = null;
+					node = next;
+				}
+				sentinel.prev = sentinel;
+				sentinel.next = sentinel;
+			}
+		}
+	}
+
+	private Node findBucket(long expiresAt) {
+		long duration = expiresAt - time;
+		int last = wheel.length - 1;
+		for (int i = 0; i < last; i++) {
+			if (duration < SPANS[i + 1]) {
+				long ticks = (expiresAt - origin) >>> SHIFT[i];
+				return wheel[i][(int) (ticks & (wheel[i].length - 1))];
+			}
+		}
+		return wheel[last][0];
+	}
+
+	private static void unlink(Node node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+	}
+
+	/**
+	 * An entry that can be placed on the wheel.
+	 */
+	abstract static class Node {
+
+		volatile long expiresAt;
+
+		Node prev;
+
+		Node next;
+
+	}
+
+	private static final class Sentinel extends Node {
+
+		Sentinel() {
+			this.prev = this;
+			this.next = this;
+		}
+
+	}
+
+}
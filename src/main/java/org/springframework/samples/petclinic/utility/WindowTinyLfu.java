@@ -0,0 +1,272 @@
+package org.springframework.samples.petclinic.utility;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * A size bounded eviction policy following the W-TinyLFU design.
+ * <p>
+ * New entries enter a small LRU <i>window</i> (1% of the capacity). When the window
+ * overflows, its least recently used entry becomes a candidate for the <i>main</i> space,
+ * a segmented LRU made of a <i>probation</i> and a <i>protected</i> (80%) segment. The
+ * candidate is admitted only if the {@link FrequencySketch} says it was used more often
+ * than the probation victim it would replace. A burst of keys that are seen once, such as
+ * a crawler scanning pet ids, therefore churns through the window without pushing the
+ * frequently used entries out of the main space.
+ * <p>
+ * Entries are kept in intrusive linked lists so every operation is O(1). This class is
+ * not thread-safe, callers must guard it with a lock.
+ */
+final class WindowTinyLfu {
+
+	private static final int NONE = 0;
+
+	private static final int WINDOW = 1;
+
+	private static final int PROBATION = 2;
+
+	private static final int PROTECTED = 3;
+
+	private static final double WINDOW_RATIO = 0.01;
+
+	private static final double PROTECTED_RATIO = 0.8;
+
+	private final FrequencySketch sketch;
+
+	private final Node window = new Sentinel();
+
+	private final Node probation = new Sentinel();
+
+	private final Node protectedSegment = new Sentinel();
+
+	private long maximumSize;
+
+	private long windowMaximum;
+
+	private long protectedMaximum;
+
+	private long windowSize;
+
+	private long probationSize;
+
+	private long protectedSize;
+
+	WindowTinyLfu(long maximumSize) {
+		this.sketch = new FrequencySketch(maximumSize);
+		setMaximumSize(maximumSize);
+	}
+
+	void setMaximumSize(long maximumSize) {
+		this.maximumSize = maximumSize;
+		this.windowMaximum = Math.max(1, (long) (maximumSize * WINDOW_RATIO));
+		this.protectedMaximum = (long) ((maximumSize - windowMaximum) * PROTECTED_RATIO);
+		sketch.ensureCapacity(maximumSize);
+	}
+
+	long maximumSize() {
+		return maximumSize;
+	}
+
+	long size() {
+		return windowSize + probationSize + protectedSize;
+	}
+
+	/**
+	 * @return the estimated recent access frequency of the key
+	 */
+	int frequency(int key) {
+		return sketch.frequency(key);
+	}
+
+	/**
+	 * Raises the estimated frequency of the key by {@code frequency} occurrences, used to
+	 * restore the history of a previous cache.
+	 */
+	void recordFrequency(int key, int frequency) {
+		for (int i = 0; i < frequency; i++) {
+			sketch.increment(key);
+		}
+	}
+
+	/**
+	 * Adds a new entry to the window, then evicts entries until the policy is back within
+	 * its maximum size.
+	 */
+	void add(Node node, Consumer<Node> evictor) {
+		sketch.increment(node.hash);
+		node.queue = WINDOW;
+		linkLast(window, node);
+		windowSize++;
+		evict(evictor);
+	}
+
+	/**
+	 * Records a read of an entry that is still part of the policy.
+	 */
+	void recordAccess(Node node) {
+		if (node.queue == NONE) {
+			return;
+		}
+		sketch.increment(node.hash);
+		unlink(node);
+		if (node.queue == PROBATION) {
+			probationSize--;
+			node.queue = PROTECTED;
+			protectedSize++;
+			linkLast(protectedSegment, node);
+			while (protectedSize > protectedMaximum) {
+				Node demoted = protectedSegment.nextInAccessOrder;
+				unlink(demoted);
+				protectedSize--;
+				demoted.queue = PROBATION;
+				probationSize++;
+				linkLast(probation, demoted);
+			}
+		}
+		else {
+			linkLast(node.queue == WINDOW ? window : protectedSegment, node);
+		}
+	}
+
+	/**
+	 * Removes an entry that is invalidated or expired.
+	 */
+	void remove(Node node) {
+		switch (node.queue) {
+		case WINDOW:
+			windowSize--;
+			break;
+		case PROBATION:
+			probationSize--;
+			break;
+		case PROTECTED:
+			protectedSize--;
+			break;
+		default:
+			return;
+		}
+		unlink(node);
+		node.queue = NONE;
+	}
+
+	/**
+	 * Removes every entry, keeping the frequency history.
+	 */
+	void clear() {
+		for (Node sentinel : new Node[] { window, probation, protectedSegment }) {
+			Node node = sentinel.nextInAccessOrder;
+			while (node != sentinel) {
+				Node next = node.nextInAccessOrder;
+				node.queue = NONE;
+				node.previousInAccessOrder = null;
+				node.nextInAccessOrder = null;
+				node = next;
+			}
+			sentinel.previousInAccessOrder = sentinel;
+			sentinel.nextInAccessOrder = sentinel;
+		}
+		windowSize = 0;
+		probationSize = 0;
+		protectedSize = 0;
+	}
+
+	/**
+	 * Evicts entries until the policy is within its maximum size again.
+	 */
+	void evict(Consumer<Node> evictor) {
+		long mainMaximum = maximumSize - windowMaximum;
+		while (windowSize > windowMaximum) {
+			Node candidate = window.nextInAccessOrder;
+			unlink(candidate);
+			windowSize--;
+			if (probationSize + protectedSize < mainMaximum) {
+				candidate.queue = PROBATION;
+				probationSize++;
+				linkLast(probation, candidate);
+				continue;
+			}
+			Node victim = first(probation, protectedSegment);
+			if (victim != null && admit(candidate.hash, victim.hash)) {
+				remove(victim);
+				evictor.accept(victim);
+				candidate.queue = PROBATION;
+				probationSize++;
+				linkLast(probation, candidate);
+			}
+			else {
+				candidate.queue = NONE;
+				evictor.accept(candidate);
+			}
+		}
+		// only reachable after the maximum size was lowered
+		while (size() > maximumSize) {
+			Node victim = first(probation, protectedSegment, window);
+			remove(victim);
+			evictor.accept(victim);
+		}
+	}
+
+	private boolean admit(int candidateKey, int victimKey) {
+		int candidateFrequency = sketch.frequency(candidateKey);
+		int victimFrequency = sketch.frequency(victimKey);
+		if (candidateFrequency > victimFrequency) {
+			return true;
+		}
+		if (candidateFrequency <= 5) {
+			return false;
+		}
+		// a hot victim must not be unbeatable, otherwise an attacker could pin it forever
+		return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+	}
+
+	private static Node first(Node... sentinels) {
+		for (Node sentinel : sentinels) {
+			if (sentinel.nextInAccessOrder != sentinel) {
+				return sentinel.nextInAccessOrder;
+			}
+		}
+		return null;
+	}
+
+	private static void linkLast(Node sentinel, Node node) {
+		node.previousInAccessOrder = sentinel.previousInAccessOrder;
+		node.nextInAccessOrder = sentinel;
+		sentinel.previousInAccessOrder.nextInAccessOrder = node;
+		sentinel.previousInAccessOrder = node;
+	}
+
+	private static void unlink(Node node) {
+		node.previousInAccessOrder.nextInAccessOrder = node.nextInAccessOrder;
+		node.nextInAccessOrder.previousInAccessOrder = node.previousInAccessOrder;
+	}
+
+	/**
+	 * An entry that can be tracked by the policy.
+	 */
+	abstract static class Node extends TimerWheel.Node {
+
+		final int hash;
+
+		int queue;
+
+		Node previousInAccessOrder;
+
+		Node nextInAccessOrder;
+
+		Node(int hash) {
+			this.hash = hash;
+		}
+
+	}
+
+	private static final class Sentinel extends Node {
+
+		Sentinel() {
+			super(0);
+			this.previousInAccessOrder = this;
+			this.nextInAccessOrder = this;
+		}
+
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.springframework.samples.petclinic.owner;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.samples.petclinic.visit.VisitRepository;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.model;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.view;
+
+/**
+ * Test class for {@link OwnerController} searching with the {@link OwnerLastNameIndex}
+ */
+@WebMvcTest(controllers = OwnerController.class, properties = "petclinic.owners.last-name-index.enabled=true")
+@Import(OwnerLastNameIndex.class)
+class OwnerControllerLastNameIndexTests {
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private OwnerLastNameIndex lastNameIndex;
+
+	@MockBean
+	private OwnerRepository owners;
+
+	@MockBean
+	private VisitRepository visits;
+
+	private Owner george;
+
+	private Owner betty;
+
+	@BeforeEach
+	void setup() {
+		george = new Owner();
+		george.setId(1);
+		george.setLastName("Franklin");
+		betty = new Owner();
+		betty.setId(2);
+		betty.setLastName("Davis");
+		lastNameIndex.update(george);
+		lastNameIndex.update(betty);
+	}
+
+	@Test
+	void testFindSingleOwnerWithoutQuery() throws Exception {
+		mockMvc.perform(get("/owners").param("lastName", "frank")).andExpect(status().is3xxRedirection())
+				.andExpect(view().name("redirect:/owners/1"));
+		verify(owners, never()).findByLastName(any());
+		verify(owners, never()).findByIdIn(any());
+	}
+
+	@Test
+	void testFindOwnersLoadsOnlyMatches() throws Exception {
+		given(owners.findByIdIn(Arrays.asList(2, 1))).willReturn(Arrays.asList(george, betty));
+		mockMvc.perform(get("/owners")).andExpect(status().isOk()).andExpect(view().name("owners/ownersList"))
+				.andExpect(model().attribute("selections", contains(betty, george)));
+		verify(owners, never()).findByLastName(any());
+	}
+
+	@Test
+	void testFindNoOwner() throws Exception {
+		mockMvc.perform(get("/owners").param("lastName", "Unknown")).andExpect(status().isOk())
+				.andExpect(model().attributeHasFieldErrors("owner", "lastName"))
+				.andExpect(view().name("owners/findOwners"));
+	}
+
+	@Test
+	void testBroadSearchLoadsOnePage() throws Exception {
+		List<Integer> secondPage = new ArrayList<>();
+		for (int id = 100; id < 100 + 2 * OwnerController.OWNERS_PAGE_SIZE + 10; id++) {
+			Owner owner = new Owner();
+			owner.setId(id);
+			owner.setLastName("Zimmer");
+			lastNameIndex.update(owner);
+			if (id >= 100 + OwnerController.OWNERS_PAGE_SIZE && id < 100 + 2 * OwnerController.OWNERS_PAGE_SIZE) {
+				secondPage.add(id);
+			}
+		}
+		mockMvc.perform(get("/owners").param("lastName", "zim").param("page", "2")).andExpect(status().isOk())
+				.andExpect(view().name("owners/ownersList")).andExpect(model().attribute("currentPage", 2))
+				.andExpect(model().attribute("totalPages", 3))
+				.andExpect(model().attribute("totalOwners", 2 * OwnerController.OWNERS_PAGE_SIZE + 10));
+		//only the ids of the page shown are queried for
+		verify(owners).findByIdIn(secondPage);
+		verify(owners, never()).findByLastName(any());
+	}
+
+}
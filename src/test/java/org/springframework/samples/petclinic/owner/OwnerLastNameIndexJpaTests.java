@@ -0,0 +1,71 @@
+package org.springframework.samples.petclinic.owner;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for {@link OwnerLastNameIndex} kept up to date by owners saved through
+ * {@link OwnerRepository}, without {@link OwnerController}
+ */
+@DataJpaTest(properties = "petclinic.owners.last-name-index.enabled=true")
+@Import(OwnerLastNameIndex.class)
+// the index is updated once a save commits, so the tests must not run in a rolled back transaction
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class OwnerLastNameIndexJpaTests {
+
+	@Autowired
+	private OwnerRepository owners;
+
+	@Autowired
+	private OwnerLastNameIndex lastNameIndex;
+
+	@Autowired
+	private TransactionTemplate transactions;
+
+	private Owner newOwner(String lastName) {
+		Owner owner = new Owner();
+		owner.setFirstName("Sam");
+		owner.setLastName(lastName);
+		owner.setAddress("4, Evans Street");
+		owner.setCity("Wollongong");
+		owner.setTelephone("4444444444");
+		return owner;
+	}
+
+	@Test
+	void testIndexIsBuiltFromDataStore() {
+		assertEquals(Collections.singletonList(1), lastNameIndex.findIds("franklin", 0, 10));
+	}
+
+	@Test
+	void testSavedOwnersAreIndexed() {
+		Owner owner = newOwner("Schultz");
+		owners.save(owner);
+		assertEquals(Collections.singletonList(owner.getId()), lastNameIndex.findIds("schul", 0, 10));
+
+		owner.setLastName("Schulze-Renamed");
+		owners.save(owner);
+		assertEquals(Collections.singletonList(owner.getId()), lastNameIndex.findIds("schulze-r", 0, 10));
+		assertEquals(0, lastNameIndex.count("schultz"));
+	}
+
+	@Test
+	void testRolledBackSaveIsNotIndexed() {
+		transactions.execute(status -> {
+			owners.save(newOwner("Rollback"));
+			status.setRollbackOnly();
+			return null;
+		});
+		assertEquals(0, lastNameIndex.count("rollback"));
+	}
+
+}
@@ -0,0 +1,195 @@
+package org.springframework.samples.petclinic.owner;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+class OwnerLastNameIndexTest {
+
+	private OwnerRepository owners;
+
+	private OwnerLastNameIndex index;
+
+	private static OwnerRepository.LastName lastName(int id, String lastName) {
+		return new OwnerRepository.LastName() {
+			@Override
+			public Integer getId() {
+				return id;
+			}
+
+			@Override
+			public String getLastName() {
+				return lastName;
+			}
+		};
+	}
+
+	private static Owner owner(int id, String lastName) {
+		Owner owner = new Owner();
+		owner.setId(id);
+		owner.setLastName(lastName);
+		return owner;
+	}
+
+	private List<Integer> ids(String prefix) {
+		return index.findIds(prefix, 0, Integer.MAX_VALUE);
+	}
+
+	@BeforeEach
+	public void setup() {
+		owners = mock(OwnerRepository.class);
+		given(owners.findAllLastNames()).willReturn(Arrays.asList(lastName(1, "Franklin"), lastName(2, "Davis"),
+				lastName(3, "Rodriquez"), lastName(4, "Davis"), lastName(5, "McTavish"), lastName(6, "Coleman")));
+		index = new OwnerLastNameIndex(owners);
+		index.rebuild();
+	}
+
+	@Test
+	public void testFindsByPrefixIgnoringCase() {
+		assertEquals(Arrays.asList(2, 4), ids("Dav"));
+		assertEquals(Arrays.asList(2, 4), ids("davis"));
+		assertEquals(Collections.singletonList(5), ids("MCT"));
+		assertEquals(Collections.emptyList(), ids("Davisson"));
+		assertEquals(Arrays.asList(6, 2, 4, 1, 5, 3), ids(""));
+		assertEquals(2, index.count("d"));
+		assertEquals(6, index.count(""));
+	}
+
+	@Test
+	public void testFindsPagesByOffset() {
+		assertEquals(Arrays.asList(4, 1, 5), index.findIds("", 2, 3));
+		assertEquals(Collections.singletonList(3), index.findIds("", 5, 3));
+		assertEquals(Collections.emptyList(), index.findIds("", 6, 3));
+		assertEquals(Collections.singletonList(4), index.findIds("d", 1, 50));
+		//owners indexed since the index was built are paged in their place
+		index.update(owner(7, "Dawson"));
+		index.update(owner(2, "Adams"));
+		assertEquals(Arrays.asList(4, 7), index.findIds("d", 0, 50));
+		assertEquals(Arrays.asList(6, 4, 7), index.findIds("", 1, 3));
+	}
+
+	@Test
+	public void testUpdateIndexesNewAndRenamedOwners() {
+		index.update(owner(7, "Davies"));
+		index.update(owner(1, "Davidson"));
+		assertEquals(Arrays.asList(1, 7, 2, 4), ids("dav"));
+		assertEquals(0, index.count("Franklin"));
+		//saving without a change keeps a single entry
+		index.update(owner(1, "davidson"));
+		assertEquals(4, index.count("Dav"));
+		index.update(new Owner());
+		assertEquals(7, index.count(""));
+	}
+
+	@Test
+	public void testMatchesAgreeWithSortedNamesWhileChangesAreMerged() {
+		Random random = new Random(42);
+		String[] names = { "Black", "Blake", "Brown", "Davis", "Davies", "Franklin", "Schultz" };
+		Map<Integer, String> expected = new HashMap<>();
+		List<OwnerRepository.LastName> initial = new ArrayList<>();
+		for (int id = 0; id < 300; id++) {
+			String name = names[random.nextInt(names.length)] + random.nextInt(10);
+			initial.add(lastName(id, name));
+			expected.put(id, name.toLowerCase());
+		}
+		given(owners.findAllLastNames()).willReturn(initial);
+		index.rebuild();
+		//enough renames for the changes to be merged into the sorted arrays a few times
+		for (int update = 0; update < 3 * OwnerLastNameIndex.MERGE_THRESHOLD; update++) {
+			int id = random.nextInt(400);
+			String name = names[random.nextInt(names.length)] + random.nextInt(10);
+			index.update(owner(id, name));
+			expected.put(id, name.toLowerCase());
+			if (update % 97 == 0) {
+				for (String prefix : Arrays.asList("", "b", "bla", "Davi", "davis3", "x")) {
+					List<Integer> matching = expected.entrySet().stream()
+							.filter(entry -> entry.getValue().startsWith(prefix.toLowerCase()))
+							.sorted(Map.Entry.<Integer, String>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+							.map(Map.Entry::getKey).collect(Collectors.toList());
+					assertEquals(matching.size(), index.count(prefix));
+					int offset = random.nextInt(matching.size() + 1);
+					assertEquals(matching.subList(offset, Math.min(matching.size(), offset + 20)),
+							index.findIds(prefix, offset, 20));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSearchesWhileRebuilding() throws Exception {
+		List<OwnerRepository.LastName> few = new ArrayList<>();
+		List<OwnerRepository.LastName> many = new ArrayList<>();
+		for (int id = 0; id < 20000; id++) {
+			if (id < 10000) {
+				few.add(lastName(id, "Owner" + id));
+			}
+			many.add(lastName(id, "Owner" + id));
+		}
+		AtomicInteger rebuilds = new AtomicInteger();
+		given(owners.findAllLastNames()).willAnswer(invocation -> rebuilds.incrementAndGet() % 2 == 0 ? few : many);
+		index.rebuild();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> rebuilding = executor.submit(() -> {
+				for (int rebuild = 0; rebuild < 20; rebuild++) {
+					index.rebuild();
+				}
+			});
+			while (!rebuilding.isDone()) {
+				//every search sees the owners of one whole snapshot, never an empty or partial one
+				OwnerLastNameIndex.Matches matches = index.find("owner");
+				int count = matches.count();
+				assertTrue(count == 10000 || count == 20000, "found " + count);
+				assertEquals(10, matches.ids(count - 10, 50).size());
+			}
+			rebuilding.get(30, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSearchesWhileUpdating() throws Exception {
+		List<OwnerRepository.LastName> many = new ArrayList<>();
+		for (int id = 0; id < 10000; id++) {
+			many.add(lastName(id, "Owner" + id));
+		}
+		given(owners.findAllLastNames()).willReturn(many);
+		index.rebuild();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> renames = executor.submit(() -> {
+				for (int id = 0; id < 10000; id++) {
+					index.update(owner(id, "Renamed" + id));
+				}
+			});
+			while (!renames.isDone()) {
+				//every owner is found under its old or its new name, never missing
+				assertTrue(index.count("owner") + index.count("renamed") >= 10000);
+			}
+			renames.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(0, index.count("Owner"));
+		assertEquals(1111, index.count("renamed1"));
+	}
+
+}
@@ -1,10 +1,14 @@
 package org.springframework.samples.petclinic.owner;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.*;
 import org.slf4j.Logger;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.samples.petclinic.utility.PetTimedCache;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 
 import java.util.List;
 
@@ -38,6 +42,26 @@ class PetServiceTest {
 		MockitoAnnotations.initMocks(this);
 	}
 
+	@AfterEach
+	public void tearDown() {
+		RequestContextHolder.resetRequestAttributes();
+	}
+
+	private void startRequest() {
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+	}
+
+	private static Owner ownerWithPet(int ownerId, int petId) {
+		Owner owner = new Owner();
+		owner.setId(ownerId);
+		Pet pet = new Pet();
+		pet.setName("pet" + petId);
+		//only new pets are added to the owner
+		owner.addPet(pet);
+		pet.setId(petId);
+		return owner;
+	}
+
 	//---------------------------------- findOwner
 
 	@Test
@@ -245,5 +269,51 @@ class PetServiceTest {
 		Mockito.verify(pets).save(repoArgumentCaptor2.capture());
 		assertEquals(pet, repoArgumentCaptor2.getValue());
 	}
-}
 
+	//---------------------------------- request identity maps
+
+	@Test
+	//Behavior verification
+	public void testFindOwnerTwiceInRequestLoadsOnce() {
+		Owner realOwner = ownerWithPet(1, 7);
+		when(ownerRepository.findById(1)).thenReturn(realOwner);
+		startRequest();
+		assertSame(realOwner, petService.findOwner(1));
+		assertSame(realOwner, petService.findOwner(1));
+		Mockito.verify(ownerRepository, Mockito.times(1)).findById(1);
+	}
+
+	@Test
+	//Behavior verification
+	public void testFindPetOfFoundOwnerInRequestSkipsCache() {
+		Owner realOwner = ownerWithPet(1, 7);
+		when(ownerRepository.findById(1)).thenReturn(realOwner);
+		startRequest();
+		Owner found = petService.findOwner(1);
+		assertSame(found.getPet("pet7"), petService.findPet(7));
+		Mockito.verify(pets, Mockito.never()).get(anyInt());
+	}
+
+	@Test
+	//State verification
+	public void testSavedPetIsFoundInRequest() {
+		Owner realOwner = ownerWithPet(1, 7);
+		when(ownerRepository.findById(1)).thenReturn(realOwner);
+		startRequest();
+		petService.findOwner(1);
+		Pet edited = new Pet();
+		edited.setId(7);
+		edited.setName("renamed");
+		petService.savePet(edited, realOwner);
+		assertSame(edited, petService.findPet(7));
+	}
+
+	@Test
+	//Behavior verification
+	public void testFindOwnerOutsideRequestLoadsEveryTime() {
+		when(ownerRepository.findById(1)).thenReturn(ownerWithPet(1, 7));
+		petService.findOwner(1);
+		petService.findOwner(1);
+		Mockito.verify(ownerRepository, Mockito.times(2)).findById(1);
+	}
+}
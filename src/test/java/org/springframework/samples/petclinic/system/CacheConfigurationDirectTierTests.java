@@ -0,0 +1,70 @@
+package org.springframework.samples.petclinic.system;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetRepository;
+import org.springframework.samples.petclinic.utility.OffHeapPetTier;
+import org.springframework.samples.petclinic.utility.PetTimedCache;
+import org.springframework.test.annotation.DirtiesContext;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Test class for the direct memory second tier of the {@link PetTimedCache} set up by
+ * {@link CacheConfiguration}
+ */
+@SpringBootTest(properties = { "spring.cache.jcache.config=classpath:ehcache-l2-tests.xml",
+		"petclinic.cache.pets.l2.enabled=true", "petclinic.cache.pets.l2.store=direct",
+		"petclinic.cache.pets.l2.direct-mb=1", "petclinic.cache.pets.maximum-size=2" })
+// closes the context, and with it the CacheManager, which is shared with the other second tier test
+@DirtiesContext
+class CacheConfigurationDirectTierTests {
+
+	@MockBean
+	private PetRepository petRepository;
+
+	@Autowired
+	private PetTimedCache petTimedCache;
+
+	@Autowired
+	private OffHeapPetTier petCacheOffHeapTier;
+
+	@Autowired
+	private ApplicationContext context;
+
+	@Test
+	void testEvictedPetsAreDemotedToDirectMemoryAndPromotedBack() {
+		//the store property picks the direct tier instead of the Ehcache one
+		assertFalse(context.containsBean("petCacheSecondTier"));
+		given(petRepository.findById(anyInt())).willAnswer(invocation -> {
+			Pet pet = new Pet();
+			pet.setId(invocation.getArgument(0));
+			pet.setName("pet" + pet.getId());
+			return pet;
+		});
+		for (int id = 1; id <= 5; id++) {
+			petTimedCache.get(id);
+		}
+		assertEquals(2, petTimedCache.size());
+		assertEquals(3, petCacheOffHeapTier.size());
+
+		clearInvocations(petRepository);
+		for (int id = 1; id <= 5; id++) {
+			assertEquals("pet" + id, petTimedCache.get(id).getName());
+		}
+		verify(petRepository, never()).findById(anyInt());
+		//promoted pets leave the tier, pets evicted again are demoted
+		assertEquals(5, petTimedCache.size() + petCacheOffHeapTier.size());
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.springframework.samples.petclinic.system;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetRepository;
+import org.springframework.samples.petclinic.utility.JCachePetCacheTier;
+import org.springframework.samples.petclinic.utility.PetCacheTier;
+import org.springframework.samples.petclinic.utility.PetTimedCache;
+import org.springframework.test.annotation.DirtiesContext;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Test class for the Ehcache second tier of the {@link PetTimedCache} set up by
+ * {@link CacheConfiguration}
+ */
+@SpringBootTest(properties = { "spring.cache.jcache.config=classpath:ehcache-l2-tests.xml",
+		"petclinic.cache.pets.l2.enabled=true", "petclinic.cache.pets.l2.store=ehcache",
+		"petclinic.cache.pets.maximum-size=2" })
+// closes the context, and with it the CacheManager, which is shared with the other second tier test
+@DirtiesContext
+class CacheConfigurationEhcacheTierTests {
+
+	@MockBean
+	private PetRepository petRepository;
+
+	@Autowired
+	private PetTimedCache petTimedCache;
+
+	@Autowired
+	private PetCacheTier secondTier;
+
+	@Autowired
+	private CacheManager cacheManager;
+
+	@BeforeEach
+	void setup() {
+		given(petRepository.findById(anyInt())).willAnswer(invocation -> {
+			Pet pet = new Pet();
+			pet.setId(invocation.getArgument(0));
+			pet.setName("pet" + pet.getId());
+			return pet;
+		});
+	}
+
+	@Test
+	void testEvictedPetsAreDemotedToEhcacheAndPromotedBack() {
+		assertTrue(secondTier instanceof JCachePetCacheTier);
+		for (int id = 1; id <= 5; id++) {
+			petTimedCache.get(id);
+		}
+		Cache<Integer, Pet> pets = cacheManager.getCache("pets", Integer.class, Pet.class);
+		int demoted = 0;
+		for (int id = 1; id <= 5; id++) {
+			if (pets.containsKey(id)) {
+				demoted++;
+			}
+		}
+		//the first level holds two pets, the three it evicted are in the pets cache
+		assertEquals(2, petTimedCache.size());
+		assertEquals(3, demoted);
+
+		clearInvocations(petRepository);
+		for (int id = 1; id <= 5; id++) {
+			assertEquals("pet" + id, petTimedCache.get(id).getName());
+		}
+		verify(petRepository, never()).findById(anyInt());
+	}
+
+}
@@ -0,0 +1,188 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.samples.petclinic.model.BaseEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentIdentityMapTest {
+
+	private static final int THREADS = 8;
+
+	private ConcurrentIdentityMap<SampleEntity> identityMapUnderTest;
+	private ExecutorService executor;
+	private CyclicBarrier start;
+
+	@BeforeEach
+	public void setup() {
+		identityMapUnderTest = new ConcurrentIdentityMap<>();
+		executor = Executors.newFixedThreadPool(THREADS);
+		start = new CyclicBarrier(THREADS);
+	}
+
+	@AfterEach
+	public void tearDown() throws InterruptedException {
+		executor.shutdownNow();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * runs the task on every thread at once and returns their results
+	 */
+	private <T> List<T> runConcurrently(Callable<T> task) throws Exception {
+		List<Future<T>> futures = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(executor.submit(() -> {
+				start.await();
+				return task.call();
+			}));
+		}
+		List<T> results = new ArrayList<>();
+		for (Future<T> future : futures) {
+			results.add(future.get(30, TimeUnit.SECONDS));
+		}
+		return results;
+	}
+
+	@Test
+	void testAddReplacesById() {
+		SampleEntity first = new SampleEntity(1);
+		SampleEntity second = new SampleEntity(1);
+		identityMapUnderTest.add(first);
+		identityMapUnderTest.add(second);
+		assertEquals(1, identityMapUnderTest.size());
+		assertSame(second, identityMapUnderTest.get(1));
+		assertTrue(identityMapUnderTest.contains(first));
+		assertTrue(identityMapUnderTest.remove(first));
+		assertTrue(identityMapUnderTest.isEmpty());
+	}
+
+	@Test
+	void testEntityWithoutIdIsRejected() {
+		SampleEntity unsaved = new SampleEntity(1);
+		unsaved.setId(null);
+		assertThrows(IllegalArgumentException.class, () -> identityMapUnderTest.add(unsaved));
+		assertFalse(identityMapUnderTest.contains(unsaved));
+		assertFalse(identityMapUnderTest.remove(unsaved));
+	}
+
+	@Test
+	void testConcurrentPutIfAbsentAgreesOnOneInstance() throws Exception {
+		List<SampleEntity[]> canonicals = runConcurrently(() -> {
+			SampleEntity[] canonical = new SampleEntity[1000];
+			for (int id = 0; id < canonical.length; id++) {
+				SampleEntity mine = new SampleEntity(id);
+				SampleEntity present = identityMapUnderTest.putIfAbsent(mine);
+				canonical[id] = present == null ? mine : present;
+			}
+			return canonical;
+		});
+		assertEquals(1000, identityMapUnderTest.size());
+		for (SampleEntity[] canonical : canonicals) {
+			for (int id = 0; id < canonical.length; id++) {
+				//every thread must end up with the instance that is in the map
+				assertSame(identityMapUnderTest.get(id), canonical[id]);
+			}
+		}
+	}
+
+	@Test
+	void testConcurrentReplaceLosesNoUpdate() throws Exception {
+		for (int id = 0; id < 10; id++) {
+			identityMapUnderTest.add(new SampleEntity(id, 0));
+		}
+		runConcurrently(() -> {
+			for (int i = 0; i < 1000; i++) {
+				int id = ThreadLocalRandom.current().nextInt(10);
+				//increment the version with a compare and set loop
+				while (true) {
+					SampleEntity current = identityMapUnderTest.get(id);
+					if (identityMapUnderTest.replace(current, new SampleEntity(id, current.version + 1))) {
+						break;
+					}
+				}
+			}
+			return null;
+		});
+		int versions = 0;
+		for (SampleEntity entity : identityMapUnderTest) {
+			versions += entity.version;
+		}
+		assertEquals(THREADS * 1000, versions);
+	}
+
+	@Test
+	void testConcurrentAddAndRemoveKeepsNoDuplicates() throws Exception {
+		AtomicInteger thread = new AtomicInteger();
+		runConcurrently(() -> {
+			int offset = thread.getAndIncrement() * 10000;
+			for (int id = offset; id < offset + 10000; id++) {
+				identityMapUnderTest.add(new SampleEntity(id));
+				//and some churn on ids shared by all threads
+				identityMapUnderTest.add(new SampleEntity(-1 - id % 100));
+				if (id % 2 == 0) {
+					assertTrue(identityMapUnderTest.remove(new SampleEntity(id)));
+				}
+			}
+			return null;
+		});
+		assertEquals(THREADS * 5000 + 100, identityMapUnderTest.size());
+		long distinctIds = identityMapUnderTest.parallelStream().mapToInt(BaseEntity::getId).distinct().count();
+		assertEquals(identityMapUnderTest.size(), distinctIds);
+	}
+
+	@Test
+	void testIterationDuringWritesDoesNotFail() throws Exception {
+		for (int id = 0; id < 1000; id++) {
+			identityMapUnderTest.add(new SampleEntity(id));
+		}
+		AtomicInteger thread = new AtomicInteger();
+		runConcurrently(() -> {
+			if (thread.getAndIncrement() % 2 == 0) {
+				for (int i = 0; i < 10000; i++) {
+					int id = ThreadLocalRandom.current().nextInt(1000);
+					identityMapUnderTest.remove(new SampleEntity(id));
+					identityMapUnderTest.add(new SampleEntity(id));
+				}
+			} else {
+				for (int i = 0; i < 100; i++) {
+					for (SampleEntity entity : identityMapUnderTest) {
+						assertNotNull(entity.getId());
+					}
+				}
+			}
+			return null;
+		});
+		assertEquals(1000, identityMapUnderTest.size());
+	}
+
+	/**
+	 * a simple entity just for testing {@link ConcurrentIdentityMap}
+	 */
+	private static class SampleEntity extends BaseEntity {
+
+		final int version;
+
+		SampleEntity(int id) {
+			this(id, 0);
+		}
+
+		SampleEntity(int id, int version) {
+			this.setId(id);
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package org.springframework.samples.petclinic.utility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a {@link Ticker} whose time only moves when a test advances it
+ */
+class FakeTicker implements Ticker {
+
+	// start just before the overflow point, System.nanoTime values may wrap as well
+	private final AtomicLong nanos = new AtomicLong(Long.MAX_VALUE - TimeUnit.MILLISECONDS.toNanos(50));
+
+	@Override
+	public long read() {
+		return nanos.get();
+	}
+
+	FakeTicker advance(long duration, TimeUnit unit) {
+		nanos.addAndGet(unit.toNanos(duration));
+		return this;
+	}
+
+}
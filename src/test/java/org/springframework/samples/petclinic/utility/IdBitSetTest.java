@@ -0,0 +1,96 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdBitSetTest {
+
+	/**
+	 * ids that fill some containers as arrays and others as bitmaps
+	 */
+	private static int[] randomIds(Random random, int count, int bound) {
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = random.nextBoolean() ? random.nextInt(bound) : -1 - random.nextInt(bound / 50);
+		}
+		return ids;
+	}
+
+	private static Set<Integer> setOf(int[] ids) {
+		Set<Integer> set = new HashSet<>();
+		for (int id : ids) {
+			set.add(id);
+		}
+		return set;
+	}
+
+	private static Set<Integer> toSet(IdBitSet ids) {
+		Set<Integer> set = new HashSet<>();
+		ids.forEach(set::add);
+		assertEquals(set.size(), ids.cardinality());
+		return set;
+	}
+
+	@Test
+	public void testBehavesLikeHashSet() {
+		Random random = new Random(42);
+		for (int round = 0; round < 20; round++) {
+			int[] first = randomIds(random, 50_000, 300_000);
+			int[] second = randomIds(random, 20_000 + random.nextInt(60_000), 300_000);
+			IdBitSet firstIds = IdBitSet.of(first);
+			IdBitSet secondIds = IdBitSet.of(second);
+			Set<Integer> expectedFirst = setOf(first);
+			Set<Integer> expectedSecond = setOf(second);
+			assertEquals(expectedFirst, toSet(firstIds));
+
+			Set<Integer> both = new HashSet<>(expectedFirst);
+			both.retainAll(expectedSecond);
+			assertEquals(both, toSet(firstIds.and(secondIds)));
+
+			Set<Integer> onlyFirst = new HashSet<>(expectedFirst);
+			onlyFirst.removeAll(expectedSecond);
+			assertEquals(onlyFirst, toSet(firstIds.andNot(secondIds)));
+
+			assertTrue(firstIds.containsAll(firstIds.and(secondIds)));
+			assertTrue(firstIds.containsAll(firstIds.andNot(secondIds)));
+			assertEquals(expectedFirst.containsAll(expectedSecond), firstIds.containsAll(secondIds));
+			for (int id = -10_000; id < 10_000; id++) {
+				assertEquals(expectedFirst.contains(id), firstIds.contains(id));
+			}
+		}
+	}
+
+	@Test
+	public void testDenseIdsMakeBitmapsAndBack() {
+		int[] all = new int[200_000];
+		List<Integer> odd = new ArrayList<>();
+		for (int id = 0; id < all.length; id++) {
+			all[id] = id;
+			if (id % 2 == 1) {
+				odd.add(id);
+			}
+		}
+		IdBitSet allIds = IdBitSet.of(all);
+		IdBitSet oddIds = IdBitSet.of(odd.stream().mapToInt(Integer::intValue).toArray());
+		assertEquals(200_000, allIds.cardinality());
+		assertTrue(allIds.containsAll(oddIds));
+		assertFalse(oddIds.containsAll(allIds));
+		IdBitSet evenIds = allIds.andNot(oddIds);
+		assertEquals(100_000, evenIds.cardinality());
+		assertTrue(allIds.and(oddIds).containsAll(oddIds));
+		assertTrue(evenIds.and(oddIds).isEmpty());
+		//a few ids left make an array again
+		IdBitSet few = allIds.and(IdBitSet.of(3, 70_000, 199_999, 200_000));
+		assertEquals(3, few.cardinality());
+		assertTrue(few.contains(70_000));
+		assertFalse(few.contains(200_000));
+	}
+
+}
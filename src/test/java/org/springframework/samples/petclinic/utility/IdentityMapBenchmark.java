@@ -0,0 +1,144 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.samples.petclinic.model.BaseEntity;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replacing, removing and looking up entities in an {@link IdentityMap} of a million
+ * entities, next to the list scanning implementation it replaced, and intersecting it
+ * with a map of every other id through id bitsets, next to looking up every entity. Not run by the build,
+ * run {@code org.openjdk.jmh.Main IdentityMapBenchmark} on the test class path after
+ * {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentityMapBenchmark {
+
+	@Param({ "1000000" })
+	int size;
+
+	IdentityMap<Entity> identityMap;
+
+	ScanningIdentityMap scanningMap;
+
+	IdentityMap<Entity> everyOtherMap;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		identityMap = new IdentityMap<>();
+		scanningMap = new ScanningIdentityMap();
+		everyOtherMap = new IdentityMap<>();
+		for (int id = 0; id < size; id++) {
+			identityMap.add(new Entity(id));
+			scanningMap.add(new Entity(id));
+			if (id % 2 == 0) {
+				everyOtherMap.add(new Entity(id));
+			}
+		}
+	}
+
+	@Benchmark
+	public boolean replace() {
+		return identityMap.add(new Entity(ThreadLocalRandom.current().nextInt(size)));
+	}
+
+	@Benchmark
+	public boolean replaceByScanning() {
+		return scanningMap.add(new Entity(ThreadLocalRandom.current().nextInt(size)));
+	}
+
+	/**
+	 * Removes an entity and adds it back, so the size stays the same.
+	 */
+	@Benchmark
+	public boolean removeAndAdd() {
+		Entity entity = new Entity(ThreadLocalRandom.current().nextInt(size));
+		identityMap.remove(entity);
+		return identityMap.add(entity);
+	}
+
+	@Benchmark
+	public boolean removeAndAddByScanning() {
+		Entity entity = new Entity(ThreadLocalRandom.current().nextInt(size));
+		scanningMap.remove(entity);
+		return scanningMap.add(entity);
+	}
+
+	@Benchmark
+	public boolean contains() {
+		return identityMap.contains(new Entity(ThreadLocalRandom.current().nextInt(2 * size)));
+	}
+
+	@Benchmark
+	public IdentityMap<Entity> intersection() {
+		return identityMap.intersection(everyOtherMap);
+	}
+
+	@Benchmark
+	public IdentityMap<Entity> intersectionByLookup() {
+		IdentityMap<Entity> result = new IdentityMap<>();
+		for (Entity entity : identityMap) {
+			if (everyOtherMap.contains(entity)) {
+				result.add(entity);
+			}
+		}
+		return result;
+	}
+
+	@Benchmark
+	public boolean containsAll() {
+		return identityMap.containsAll(everyOtherMap);
+	}
+
+	static final class Entity extends BaseEntity {
+
+		Entity(int id) {
+			setId(id);
+		}
+
+	}
+
+	/**
+	 * The previous implementation, which scans the list to replace or remove an entity.
+	 */
+	static final class ScanningIdentityMap {
+
+		private final ArrayList<Entity> entities = new ArrayList<>();
+
+		private final Set<Integer> ids = new HashSet<>();
+
+		boolean add(Entity entity) {
+			if (!ids.add(entity.getId())) {
+				entities.removeIf(entity::sameId);
+			}
+			return entities.add(entity);
+		}
+
+		boolean remove(Entity entity) {
+			return ids.remove(entity.getId()) && entities.removeIf(entity::sameId);
+		}
+
+	}
+
+}
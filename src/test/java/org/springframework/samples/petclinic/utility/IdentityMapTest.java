@@ -5,9 +5,16 @@ import org.junit.jupiter.api.Test;
 import org.springframework.samples.petclinic.model.BaseEntity;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
 import java.util.stream.IntStream;
 
 import static java.lang.Math.abs;
@@ -91,6 +98,253 @@ class IdentityMapTest {
 		assertEquals(0, identityMapUnderTest.size());
     }
 
+    @Test
+    void testAddReplacesEntityWithSameId() {
+		SampleEntity first = new SampleEntity(1);
+		SampleEntity second = new SampleEntity(1);
+		identityMapUnderTest.add(first);
+		identityMapUnderTest.add(second);
+		assertEquals(1, identityMapUnderTest.size());
+		assertSame(second, identityMapUnderTest.get(1));
+    }
+
+    @Test
+    void testPrimitiveAndBoxedLookupsAgree() {
+		SampleEntity entity = new SampleEntity(7);
+		identityMapUnderTest.add(entity);
+		assertSame(entity, identityMapUnderTest.get(7));
+		assertSame(entity, identityMapUnderTest.get(Integer.valueOf(7)));
+		assertNull(identityMapUnderTest.get(8));
+		assertNull(identityMapUnderTest.get(Integer.valueOf(8)));
+		assertNull(identityMapUnderTest.get(null));
+    }
+
+    @Test
+    void testRemoveKeepsOtherEntitiesReachable() {
+		IntStream.range(0, 100).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		IntStream.range(0, 100).filter(id -> id % 3 == 0)
+			.forEach(id -> assertTrue(identityMapUnderTest.remove(new SampleEntity(id))));
+		assertFalse(identityMapUnderTest.remove(new SampleEntity(0)));
+		assertEquals(66, identityMapUnderTest.size());
+		IntStream.range(0, 100).forEach(id -> {
+			if (id % 3 == 0) {
+				assertNull(identityMapUnderTest.get(id));
+			} else {
+				assertEquals(id, identityMapUnderTest.get(id).getId());
+			}
+		});
+    }
+
+    @Test
+    void testSortKeepsEntitiesReachable() {
+		IntStream.range(0, 100).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		identityMapUnderTest.sort(Comparator.comparing(SampleEntity::getId).reversed());
+		identityMapUnderTest.remove(new SampleEntity(50));
+		IntStream.range(0, 100).filter(id -> id != 50)
+			.forEach(id -> assertEquals(id, identityMapUnderTest.get(id).getId()));
+    }
+
+    @Test
+    void testEntityWithoutIdIsKeptOnce() {
+		SampleEntity unsaved = new SampleEntity(1);
+		unsaved.setId(null);
+		identityMapUnderTest.add(new SampleEntity(2));
+		identityMapUnderTest.add(unsaved);
+		identityMapUnderTest.add(unsaved);
+		assertEquals(2, identityMapUnderTest.size());
+		assertSame(unsaved, identityMapUnderTest.get(null));
+		identityMapUnderTest.remove(new SampleEntity(2));
+		assertSame(unsaved, identityMapUnderTest.get(null));
+		assertTrue(identityMapUnderTest.remove(unsaved));
+		assertFalse(identityMapUnderTest.contains(unsaved));
+		assertTrue(identityMapUnderTest.isEmpty());
+    }
+
+    @Test
+    void testManyEntitiesWithNegativeAndLargeIds() {
+		IntStream.range(-50000, 50000).forEach(i -> identityMapUnderTest.add(new SampleEntity(i * 40000)));
+		assertEquals(100000, identityMapUnderTest.size());
+		IntStream.range(-50000, 50000).filter(i -> i % 2 == 0)
+			.forEach(i -> identityMapUnderTest.remove(new SampleEntity(i * 40000)));
+		assertEquals(50000, identityMapUnderTest.size());
+		IntStream.range(-50000, 50000)
+			.forEach(i -> assertEquals(i % 2 != 0, identityMapUnderTest.contains(new SampleEntity(i * 40000))));
+    }
+
+    @Test
+    void testIteratorReturnsEveryEntityOnce() {
+		IntStream.range(0, 1000).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		Set<Integer> seen = new HashSet<>();
+		for (SampleEntity entity : identityMapUnderTest) {
+			assertTrue(seen.add(entity.getId()));
+		}
+		assertEquals(1000, seen.size());
+    }
+
+    @Test
+    void testIteratorRemove() {
+		IntStream.range(0, 1000).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		Set<Integer> seen = new HashSet<>();
+		Iterator<SampleEntity> iterator = identityMapUnderTest.iterator();
+		while (iterator.hasNext()) {
+			SampleEntity entity = iterator.next();
+			assertTrue(seen.add(entity.getId()));
+			if (entity.getId() % 2 == 0) {
+				iterator.remove();
+			}
+		}
+		assertEquals(1000, seen.size());
+		assertEquals(500, identityMapUnderTest.size());
+		assertFalse(identityMapUnderTest.contains(new SampleEntity(0)));
+		assertTrue(identityMapUnderTest.contains(new SampleEntity(1)));
+		assertThrows(IllegalStateException.class, iterator::remove);
+    }
+
+    @Test
+    void testIteratorFailsFast() {
+		identityMapUnderTest.addAll(someSampleEntities);
+		Iterator<SampleEntity> iterator = identityMapUnderTest.iterator();
+		iterator.next();
+		identityMapUnderTest.add(new SampleEntity());
+		assertThrows(ConcurrentModificationException.class, iterator::next);
+    }
+
+    @Test
+    void testToArray() {
+		identityMapUnderTest.addAll(someSampleEntities);
+		assertEquals(someSampleEntities, new HashSet<>(Arrays.asList(identityMapUnderTest.toArray())));
+		SampleEntity[] array = identityMapUnderTest.toArray(new SampleEntity[0]);
+		assertEquals(someSampleEntities, new HashSet<>(Arrays.asList(array)));
+    }
+
+    @Test
+    void testRetainAll() {
+		IntStream.range(0, 100).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		List<SampleEntity> kept = new ArrayList<>();
+		identityMapUnderTest.forEach(entity -> {
+			if (entity.getId() % 10 == 0) {
+				kept.add(entity);
+			}
+		});
+		assertTrue(identityMapUnderTest.retainAll(kept));
+		assertEquals(10, identityMapUnderTest.size());
+		assertTrue(identityMapUnderTest.containsAll(kept));
+		assertFalse(identityMapUnderTest.retainAll(kept));
+    }
+
+    @Test
+    void testParallelStreamSeesEveryEntity() {
+		IntStream.range(0, 100000).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		assertEquals(100000L * 99999 / 2,
+			identityMapUnderTest.parallelStream().mapToLong(SampleEntity::getId).sum());
+		Spliterator<SampleEntity> spliterator = identityMapUnderTest.spliterator();
+		Spliterator<SampleEntity> prefix = spliterator.trySplit();
+		assertEquals(50000, prefix.estimateSize());
+		assertEquals(50000, spliterator.estimateSize());
+		assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT));
+    }
+
+    @Test
+    void testSortedMapKeepsOrderUnderChanges() {
+		IdentityMap<SampleEntity> sorted = new IdentityMap<>(Comparator.comparing(SampleEntity::getId).reversed());
+		new Random(7).ints(1000, 0, 500).forEach(id -> sorted.add(new SampleEntity(id)));
+		IntStream.range(0, 500).filter(id -> id % 5 == 0).forEach(id -> sorted.remove(new SampleEntity(id)));
+		IntStream.range(0, 500).filter(id -> id % 7 == 0).forEach(id -> sorted.add(new SampleEntity(id)));
+		List<Integer> ids = new ArrayList<>();
+		sorted.forEach(entity -> ids.add(entity.getId()));
+		List<Integer> expected = new ArrayList<>(ids);
+		expected.sort(Comparator.reverseOrder());
+		assertEquals(expected, ids);
+		assertEquals(new HashSet<>(ids).size(), sorted.size());
+		assertThrows(IllegalStateException.class, () -> sorted.sort(Comparator.comparing(SampleEntity::getId)));
+    }
+
+    @Test
+    void testSortedViewAnswersRangeQueries() {
+		//ordered by the last digit of the id, then by id
+		IdentityMap<SampleEntity> sorted = new IdentityMap<>(Comparator.comparing(entity -> entity.getId() % 10));
+		IntStream.range(0, 100).forEach(id -> sorted.add(new SampleEntity(id)));
+		NavigableSet<SampleEntity> range = sorted.sortedView().subSet(new SampleEntity(3), true, new SampleEntity(5), false);
+		assertEquals(20, range.size());
+		assertEquals(3, range.first().getId());
+		assertEquals(94, range.last().getId());
+		assertThrows(UnsupportedOperationException.class, () -> range.remove(range.first()));
+		assertThrows(IllegalStateException.class, () -> identityMapUnderTest.sortedView());
+    }
+
+    @Test
+    void testSortedMapIteratorRemove() {
+		IdentityMap<SampleEntity> sorted = new IdentityMap<>(Comparator.comparing(SampleEntity::getId));
+		IntStream.range(0, 100).forEach(id -> sorted.add(new SampleEntity(id)));
+		Iterator<SampleEntity> iterator = sorted.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getId() < 50) {
+				iterator.remove();
+			}
+		}
+		assertEquals(50, sorted.size());
+		assertNull(sorted.get(0));
+		assertEquals(50, sorted.sortedView().first().getId());
+    }
+
+    @Test
+    void testRetainAllWithLargeList() {
+		IntStream.range(0, 300000).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		List<SampleEntity> kept = new ArrayList<>();
+		IntStream.range(100000, 500000).forEach(id -> kept.add(new SampleEntity(id)));
+		assertTrue(identityMapUnderTest.retainAll(kept));
+		assertEquals(200000, identityMapUnderTest.size());
+		assertNull(identityMapUnderTest.get(99999));
+		assertNotNull(identityMapUnderTest.get(100000));
+		assertTrue(identityMapUnderTest.removeAll(kept));
+		assertTrue(identityMapUnderTest.isEmpty());
+    }
+
+    @Test
+    void testIntersectionAndDifference() {
+		IdentityMap<SampleEntity> cached = new IdentityMap<>();
+		IntStream.range(0, 200000).forEach(id -> cached.add(new SampleEntity(id)));
+		IdentityMap<SampleEntity> current = new IdentityMap<>();
+		IntStream.range(150000, 250000).forEach(id -> current.add(new SampleEntity(id)));
+		SampleEntity unsaved = new SampleEntity();
+		unsaved.setId(null);
+		cached.add(unsaved);
+
+		IdentityMap<SampleEntity> both = cached.intersection(current);
+		assertEquals(50000, both.size());
+		assertSame(cached.get(150000), both.get(150000));
+		IdentityMap<SampleEntity> stale = cached.difference(current);
+		assertEquals(150001, stale.size());
+		assertSame(unsaved, stale.get(null));
+		assertTrue(cached.containsAll(both));
+		assertTrue(cached.containsAll(stale));
+		assertFalse(cached.containsAll(current));
+		assertEquals(50000, current.difference(cached).size());
+    }
+
+    @Test
+    void testIdsFollowChanges() {
+		IntStream.range(0, 100).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		IdBitSet ids = identityMapUnderTest.ids();
+		assertEquals(100, ids.cardinality());
+		//replacing keeps the ids
+		identityMapUnderTest.add(new SampleEntity(5));
+		assertSame(ids, identityMapUnderTest.ids());
+		identityMapUnderTest.remove(new SampleEntity(5));
+		assertFalse(identityMapUnderTest.ids().contains(5));
+		assertTrue(ids.contains(5));
+    }
+
+    @Test
+    void testIntersectionOfSortedMapIsSorted() {
+		IdentityMap<SampleEntity> sorted = new IdentityMap<>(Comparator.comparing(SampleEntity::getId).reversed());
+		IntStream.range(0, 100).forEach(id -> sorted.add(new SampleEntity(id)));
+		IntStream.range(50, 150).forEach(id -> identityMapUnderTest.add(new SampleEntity(id)));
+		IdentityMap<SampleEntity> both = sorted.intersection(identityMapUnderTest);
+		assertEquals(99, both.sortedView().first().getId());
+		assertEquals(50, both.sortedView().last().getId());
+    }
+
 	/**
 	 * a simple entity just for testing {@link IdentityMap}
 	 */
@@ -0,0 +1,36 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IntLongHashMapTest {
+
+	@Test
+	public void testBehavesLikeHashMap() {
+		IntLongHashMap map = new IntLongHashMap(4);
+		Map<Integer, Long> expected = new HashMap<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 200_000; i++) {
+			//few distinct keys, so removals leave holes inside probe runs
+			int key = random.nextInt(5000) - 2500;
+			long value = random.nextInt(Integer.MAX_VALUE);
+			if (random.nextBoolean()) {
+				assertEquals(expected.getOrDefault(key, IntLongHashMap.MISSING), map.put(key, value));
+				expected.put(key, value);
+			} else {
+				assertEquals(expected.getOrDefault(key, IntLongHashMap.MISSING), map.remove(key));
+				expected.remove(key);
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for (int key = -2500; key < 2500; key++) {
+			assertEquals(expected.getOrDefault(key, IntLongHashMap.MISSING), map.get(key));
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.springframework.samples.petclinic.owner.Pet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * a {@link PetCacheTier} kept in a plain map, so tests can look into it
+ */
+class MapPetCacheTier implements PetCacheTier {
+
+	final Map<Integer, Pet> pets = new ConcurrentHashMap<>();
+
+	@Override
+	public void put(Pet pet) {
+		pets.put(pet.getId(), pet);
+	}
+
+	@Override
+	public Pet remove(Integer id) {
+		return pets.remove(id);
+	}
+
+	@Override
+	public void clear() {
+		pets.clear();
+	}
+
+}
@@ -0,0 +1,121 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Making a component whose constructor takes a singleton and a new instance of another
+ * component: with {@code new}, with {@link MyDI} autowiring, with {@link MyDI} calling
+ * {@link Constructor#newInstance}, and as a prototype bean of a Spring context. Not run by
+ * the build, run {@code org.openjdk.jmh.Main MyDIBenchmark} on the test class path after
+ * {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MyDIBenchmark {
+
+	Clock clock;
+
+	MyDI autowiring;
+
+	MyDI reflective;
+
+	AnnotationConfigApplicationContext spring;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		clock = new Clock();
+
+		autowiring = new MyDI();
+		autowiring.provideByInstance(Clock.class, clock);
+		autowiring.provideByAutowiring(Formatter.class, Formatter.class);
+		autowiring.provideByAutowiring(Report.class, Report.class);
+
+		reflective = new MyDI();
+		reflective.provideByInstance(Clock.class, clock);
+		Constructor<Formatter> formatter = Formatter.class.getConstructor(Clock.class);
+		reflective.provideByAConstructorFunction(Formatter.class,
+				() -> formatter.newInstance(reflective.getInstanceOf(Clock.class)));
+		Constructor<Report> report = Report.class.getConstructor(Clock.class, Formatter.class);
+		reflective.provideByAConstructorFunction(Report.class, () -> report
+			.newInstance(reflective.getInstanceOf(Clock.class), reflective.getInstanceOf(Formatter.class)));
+
+		spring = new AnnotationConfigApplicationContext();
+		spring.registerBean(Clock.class, () -> clock);
+		spring.registerBean(Formatter.class, definition -> definition.setScope(BeanDefinition.SCOPE_PROTOTYPE));
+		spring.registerBean(Report.class, definition -> definition.setScope(BeanDefinition.SCOPE_PROTOTYPE));
+		spring.refresh();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		spring.close();
+	}
+
+	@Benchmark
+	public Object direct() {
+		return new Report(clock, new Formatter(clock));
+	}
+
+	@Benchmark
+	public Object autowired() throws Exception {
+		return autowiring.getInstanceOf(Report.class);
+	}
+
+	@Benchmark
+	public Object reflective() throws Exception {
+		return reflective.getInstanceOf(Report.class);
+	}
+
+	@Benchmark
+	public Object springPrototype() {
+		return spring.getBean(Report.class);
+	}
+
+	public static class Clock {
+
+	}
+
+	public static class Formatter {
+
+		final Clock clock;
+
+		public Formatter(Clock clock) {
+			this.clock = clock;
+		}
+
+	}
+
+	public static class Report {
+
+		final Clock clock;
+
+		final Formatter formatter;
+
+		public Report(Clock clock, Formatter formatter) {
+			this.clock = clock;
+			this.formatter = formatter;
+		}
+
+	}
+
+}
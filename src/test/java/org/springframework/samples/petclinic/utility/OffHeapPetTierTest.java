@@ -0,0 +1,105 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetType;
+import org.springframework.samples.petclinic.visit.Visit;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapPetTierTest {
+
+	private OffHeapPetTier tier;
+
+	@BeforeEach
+	public void setup() {
+		tier = new OffHeapPetTier(OffHeapPetTier.SLAB_SIZE);
+	}
+
+	private Pet pet(int id) {
+		Pet pet = new Pet();
+		pet.setId(id);
+		pet.setName("pet" + id);
+		return pet;
+	}
+
+	@Test
+	public void testRemoveReturnsEqualPet() {
+		Owner owner = new Owner();
+		owner.setId(7);
+		owner.setFirstName("George");
+		owner.setLastName("Franklin");
+		owner.setAddress("110 W. Liberty St.");
+		owner.setCity("Madison");
+		owner.setTelephone("6085551023");
+		PetType cat = new PetType();
+		cat.setId(1);
+		cat.setName("cat");
+		Pet pet = pet(3);
+		pet.setBirthDate(LocalDate.of(2010, 9, 7));
+		pet.setType(cat);
+		owner.addPet(pet);
+		Visit visit = new Visit();
+		visit.setId(4);
+		visit.setDate(LocalDate.of(2013, 1, 1));
+		visit.setDescription("rabies shot");
+		pet.addVisit(visit);
+
+		tier.put(pet);
+		Pet stored = tier.remove(3);
+		assertEquals(3, stored.getId());
+		assertEquals("pet3", stored.getName());
+		assertEquals(LocalDate.of(2010, 9, 7), stored.getBirthDate());
+		assertEquals("cat", stored.getType().getName());
+		assertEquals(7, stored.getOwner().getId());
+		assertEquals("Franklin", stored.getOwner().getLastName());
+		assertEquals("6085551023", stored.getOwner().getTelephone());
+		assertEquals(1, stored.getVisits().size());
+		assertEquals("rabies shot", stored.getVisits().get(0).getDescription());
+		assertEquals(3, stored.getVisits().get(0).getPetId());
+		//the pet must be gone afterwards
+		assertNull(tier.remove(3));
+		assertEquals(0, tier.size());
+	}
+
+	@Test
+	public void testPutReplacesPet() {
+		tier.put(pet(1));
+		Pet renamed = pet(1);
+		renamed.setName("renamed");
+		tier.put(renamed);
+		assertEquals(1, tier.size());
+		assertEquals("renamed", tier.remove(1).getName());
+	}
+
+	@Test
+	public void testFullTierEvictsOldestPets() {
+		int count = 100_000;
+		for (int id = 0; id < count; id++) {
+			tier.put(pet(id));
+		}
+		assertTrue(tier.size() < count);
+		assertEquals(count, tier.size() + tier.evictionCount());
+		//the latest pets must still be there
+		assertNotNull(tier.remove(count - 1));
+		assertNull(tier.remove(0));
+	}
+
+	@Test
+	public void testClearDropsPets() {
+		tier.put(pet(1));
+		tier.clear();
+		assertEquals(0, tier.size());
+		assertNull(tier.remove(1));
+		tier.put(pet(1));
+		assertEquals("pet1", tier.remove(1).getName());
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.springframework.samples.petclinic.utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetRepository;
+import org.springframework.samples.petclinic.owner.PetType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link PetTimedCache} reads and writes with a growing number of threads.
+ * Not run by the build, start {@link #main(String[])} from the IDE, or run
+ * {@code org.openjdk.jmh.Main PetTimedCacheBenchmark -t <threads>} on the test class path
+ * after {@code mvn test-compile}.
+ * <p>
+ * With the cache sharded, the operations per second of {@code read} grow about linearly
+ * with the number of threads up to the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PetTimedCacheBenchmark {
+
+	@Param({ "100000" })
+	int pets;
+
+	PetTimedCache cache;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		cache = new PetTimedCache(TimeUnit.HOURS.toMillis(1), new InMemoryPetRepository());
+		cache.setMaximumSize(pets);
+		for (int id = 0; id < pets; id++) {
+			cache.get(id);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cache.close();
+	}
+
+	@Benchmark
+	public Pet read() {
+		return cache.get(ThreadLocalRandom.current().nextInt(pets));
+	}
+
+	/**
+	 * One write for every fifteen reads, each write invalidates the pet and the next read
+	 * of it loads it again.
+	 */
+	@Benchmark
+	public Pet readMostly() {
+		int id = ThreadLocalRandom.current().nextInt(pets);
+		if ((id & 15) == 0) {
+			cache.invalidate(id);
+		}
+		return cache.get(id);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			Options options = new OptionsBuilder().include(PetTimedCacheBenchmark.class.getSimpleName())
+				.threads(threads).build();
+			new Runner(options).run();
+		}
+	}
+
+	/**
+	 * A repository that makes up pets instead of querying a database, so the benchmark
+	 * measures the cache alone.
+	 */
+	static final class InMemoryPetRepository implements PetRepository {
+
+		private final PetType type = new PetType();
+
+		@Override
+		public List<PetType> findPetTypes() {
+			List<PetType> types = new ArrayList<>();
+			types.add(type);
+			return types;
+		}
+
+		@Override
+		public Pet findById(Integer id) {
+			Pet pet = new Pet();
+			pet.setId(id);
+			pet.setName("pet" + id);
+			pet.setType(type);
+			return pet;
+		}
+
+		@Override
+		public List<Pet> findByIdIn(Collection<Integer> ids) {
+			List<Pet> pets = new ArrayList<>(ids.size());
+			for (Integer id : ids) {
+				pets.add(findById(id));
+			}
+			return pets;
+		}
+
+		@Override
+		public void save(Pet pet) {
+		}
+
+	}
+
+}
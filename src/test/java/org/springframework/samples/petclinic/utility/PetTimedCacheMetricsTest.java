@@ -0,0 +1,50 @@
+package org.springframework.samples.petclinic.utility;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetRepository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PetTimedCacheMetricsTest {
+
+	@Mock private PetRepository petRepository;
+	private PetTimedCache petTimedCache;
+	private MeterRegistry registry;
+
+	@BeforeEach
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		Pet pet = new Pet();
+		pet.setId(1);
+		Mockito.when(petRepository.findById(1)).thenReturn(pet);
+		Mockito.when(petRepository.findById(2)).thenThrow(new IllegalStateException("database down"));
+		petTimedCache = new PetTimedCache(60000, petRepository);
+		registry = new SimpleMeterRegistry();
+		new PetTimedCacheMetrics(petTimedCache).bindTo(registry);
+	}
+
+	@Test
+	public void testMetersFollowCacheStatistics() {
+		petTimedCache.get(1);
+		petTimedCache.get(1);
+		try {
+			petTimedCache.get(2);
+		} catch (IllegalStateException e) {
+		}
+
+		assertEquals(1, registry.get("cache.gets").tag("cache", "pets").tag("result", "hit").functionCounter().count());
+		assertEquals(2, registry.get("cache.gets").tag("cache", "pets").tag("result", "miss").functionCounter().count());
+		assertEquals(1, registry.get("cache.load").tag("result", "success").functionCounter().count());
+		assertEquals(1, registry.get("cache.load").tag("result", "failure").functionCounter().count());
+		assertEquals(1, registry.get("cache.puts").functionCounter().count());
+		assertEquals(1, registry.get("cache.size").gauge().value());
+	}
+
+}
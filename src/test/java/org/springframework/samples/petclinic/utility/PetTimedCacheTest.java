@@ -2,14 +2,32 @@ package org.springframework.samples.petclinic.utility;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.runner.RunWith;
 import org.mockito.*;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.springframework.samples.petclinic.owner.Pet;
 import org.springframework.samples.petclinic.owner.PetRepository;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -20,9 +38,11 @@ class PetTimedCacheTest {
 	//همچنین دیتابیس ها مشکلات جانبی همانند زمان‌گیر بودن و نیاز به ستاپ و ... نیز دارند.
 
 	@Mock private PetRepository petRepository;
+	@Captor private ArgumentCaptor<Collection<Integer>> prefetched;
 	private long expiryInMillis = 100;
 	int MISS = 1, HIT = 0;
 	int ExpectedInvokeNumber = 0;
+	private FakeTicker ticker;
 	private PetTimedCache petTimedCache;
 
 	Pet[] pet = new Pet[2];
@@ -31,7 +51,8 @@ class PetTimedCacheTest {
 	public void setup() {
 		ExpectedInvokeNumber = 0;
 		MockitoAnnotations.initMocks(this);
-		petTimedCache = new PetTimedCache(expiryInMillis, petRepository);
+		ticker = new FakeTicker();
+		petTimedCache = new PetTimedCache(expiryInMillis, petRepository, ticker);
 		for (int i = 0 ; i < 2 ; i++)
 		{
 			pet[i] = new Pet();
@@ -43,7 +64,7 @@ class PetTimedCacheTest {
 	}
 
 	@Test
-	public void testCacheOneItem() throws InterruptedException {
+	public void testCacheOneItem() {
 
 		petTimedCache.get(0);
 		//cache must MISS
@@ -55,7 +76,7 @@ class PetTimedCacheTest {
 		ExpectedInvokeNumber += HIT;
 		Mockito.verify(petRepository, Mockito.times(ExpectedInvokeNumber)).findById(anyInt());
 
-		TimeUnit.MILLISECONDS.sleep(expiryInMillis * 2);
+		ticker.advance(expiryInMillis * 2, TimeUnit.MILLISECONDS);
 		petTimedCache.get(0);
 		//cache must MISS
 		ExpectedInvokeNumber += MISS;
@@ -65,7 +86,7 @@ class PetTimedCacheTest {
 
 
 	@Test
-	public void testCacheTwoItems() throws InterruptedException {
+	public void testCacheTwoItems() {
 		petTimedCache.get(0);
 		//cache must MISS
 		ExpectedInvokeNumber += MISS;
@@ -81,14 +102,14 @@ class PetTimedCacheTest {
 		ExpectedInvokeNumber += HIT;
 		Mockito.verify(petRepository, Mockito.times(ExpectedInvokeNumber)).findById(anyInt());
 
-		TimeUnit.MILLISECONDS.sleep(expiryInMillis/5);
+		ticker.advance(expiryInMillis/5, TimeUnit.MILLISECONDS);
 		petTimedCache.get(0);
 		//cache must HIT
 		ExpectedInvokeNumber += HIT;
 		Mockito.verify(petRepository, Mockito.times(ExpectedInvokeNumber)).findById(anyInt());
 
 
-		TimeUnit.MILLISECONDS.sleep(expiryInMillis * 2);
+		ticker.advance(expiryInMillis * 2, TimeUnit.MILLISECONDS);
 		petTimedCache.get(0);
 		//cache must MISS
 		ExpectedInvokeNumber += MISS;
@@ -100,4 +121,373 @@ class PetTimedCacheTest {
 		Mockito.verify(petRepository, Mockito.times(ExpectedInvokeNumber)).findById(anyInt());
 	}
 
+	@Test
+	public void testExpiredEntriesAreReclaimed() {
+		petTimedCache.get(0);
+		petTimedCache.get(1);
+		assertEquals(2, petTimedCache.size());
+
+		ticker.advance(expiryInMillis * 2, TimeUnit.MILLISECONDS);
+		//the miss advances the timer wheel, which must drop the expired entry of pet 1
+		petTimedCache.get(0);
+		assertEquals(1, petTimedCache.size());
+	}
+
+	@Test
+	public void testCloseDiscardsEntries() {
+		petTimedCache.get(0);
+		petTimedCache.close();
+		assertEquals(0, petTimedCache.size());
+
+		petTimedCache.get(0);
+		//cache must MISS
+		Mockito.verify(petRepository, Mockito.times(2)).findById(anyInt());
+	}
+
+	@Test
+	public void testScanDoesNotEvictHotEntries() {
+		PetTimedCache boundedCache = new PetTimedCache(60000, petRepository);
+		boundedCache.setMaximumSize(100);
+		Mockito.when(petRepository.findById(anyInt())).thenAnswer(invocation -> {
+			Pet loaded = new Pet();
+			loaded.setId(invocation.getArgument(0));
+			return loaded;
+		});
+		for (int round = 0; round < 3; round++) {
+			for (int id = 0; id < 50; id++) {
+				boundedCache.get(id);
+			}
+		}
+		//a scan over cold ids, each seen only once
+		for (int id = 1000; id < 1500; id++) {
+			boundedCache.get(id);
+		}
+		assertEquals(100, boundedCache.size());
+
+		Mockito.clearInvocations(petRepository);
+		for (int id = 0; id < 50; id++) {
+			boundedCache.get(id);
+		}
+		//every hot entry must HIT
+		Mockito.verify(petRepository, Mockito.never()).findById(anyInt());
+	}
+
+	@Test
+	public void testShardedCacheKeepsMaximumSize() {
+		PetTimedCache largeCache = new PetTimedCache(60000, petRepository, ticker);
+		largeCache.setMaximumSize(4096);
+		Mockito.when(petRepository.findById(anyInt())).thenAnswer(invocation -> {
+			Pet loaded = new Pet();
+			loaded.setId(invocation.getArgument(0));
+			return loaded;
+		});
+		for (int id = 0; id < 10000; id++) {
+			largeCache.get(id);
+		}
+		assertEquals(4096, largeCache.size());
+		assertEquals(10000 - 4096, largeCache.stats().evictionCount());
+	}
+
+	@Test
+	public void testConcurrentMissesLoadEachKeyOnce() throws Exception {
+		PetTimedCache sharedCache = new PetTimedCache(60000, petRepository);
+		int keys = 20, threads = 16;
+		Mockito.when(petRepository.findById(anyInt())).thenAnswer(invocation -> {
+			//a slow database makes the requests for one key pile up behind its load
+			TimeUnit.MILLISECONDS.sleep(20);
+			Pet loaded = new Pet();
+			loaded.setId(invocation.getArgument(0));
+			return loaded;
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CyclicBarrier start = new CyclicBarrier(threads);
+		List<Future<?>> results = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			results.add(executor.submit(() -> {
+				start.await();
+				for (int id = 0; id < keys; id++) {
+					assertEquals((Integer) id, sharedCache.get(id).getId());
+				}
+				return null;
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get(30, TimeUnit.SECONDS);
+		}
+		executor.shutdown();
+
+		for (int id = 0; id < keys; id++) {
+			Mockito.verify(petRepository, Mockito.times(1)).findById(id);
+		}
+	}
+
+	@Test
+	public void testSaveInvalidatesCachedPet() {
+		petTimedCache.get(0);
+		petTimedCache.save(pet[0]);
+		petTimedCache.get(0);
+		//the saved pet must be read back from the repository
+		Mockito.verify(petRepository, Mockito.times(2)).findById(0);
+	}
+
+	@Test
+	public void testSaveDuringLoadKeepsStalePetOutOfCache() throws Exception {
+		CountDownLatch loadStarted = new CountDownLatch(1);
+		CountDownLatch saved = new CountDownLatch(1);
+		Mockito.when(petRepository.findById(0)).thenAnswer(invocation -> {
+			loadStarted.countDown();
+			saved.await();
+			return pet[0];
+		}).thenReturn(pet[0]);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Pet> staleRead = executor.submit(() -> petTimedCache.get(0));
+		loadStarted.await();
+		petTimedCache.save(pet[0]);
+		saved.countDown();
+		staleRead.get(10, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		petTimedCache.get(0);
+		//the load that raced with the save must not have been cached
+		Mockito.verify(petRepository, Mockito.times(2)).findById(0);
+	}
+
+	@Test
+	public void testRefreshAheadReloadsInBackground() {
+		petTimedCache.setRefreshAfterMillis(expiryInMillis / 4);
+		petTimedCache.get(0);
+		ticker.advance(expiryInMillis / 2, TimeUnit.MILLISECONDS);
+
+		//cache must HIT and reload the aging entry in the background
+		assertEquals(pet[0], petTimedCache.get(0));
+		Mockito.verify(petRepository, Mockito.timeout(1000).times(2)).findById(0);
+	}
+
+	@Test
+	public void testStaleEntryIsServedWhileRepositoryFails() {
+		petTimedCache.setStaleGraceMillis(60000);
+		Mockito.when(petRepository.findById(0)).thenReturn(pet[0]).thenThrow(new IllegalStateException("database down"));
+		petTimedCache.get(0);
+		ticker.advance(expiryInMillis * 2, TimeUnit.MILLISECONDS);
+
+		//the expired entry must still be served, while its reload fails in the background
+		assertEquals(pet[0], petTimedCache.get(0));
+		Mockito.verify(petRepository, Mockito.timeout(1000).times(2)).findById(0);
+		assertEquals(pet[0], petTimedCache.get(0));
+		petTimedCache.close();
+	}
+
+	@Test
+	public void testStatisticsCountHitsMissesAndLoads() {
+		petTimedCache.get(0);
+		petTimedCache.get(0);
+		petTimedCache.get(1);
+
+		PetCacheStats stats = petTimedCache.stats();
+		assertEquals(1, stats.hitCount());
+		assertEquals(2, stats.missCount());
+		assertEquals(2, stats.loadSuccessCount());
+		assertEquals(0, stats.loadFailureCount());
+		assertEquals(2, stats.putCount());
+	}
+
+	@Test
+	public void testGetAllLoadsMissingPetsWithOneQuery() {
+		Pet third = new Pet();
+		third.setId(2);
+		Mockito.when(petRepository.findByIdIn(anyCollection())).thenReturn(Arrays.asList(pet[1], third));
+		petTimedCache.get(0);
+
+		Map<Integer, Pet> pets = petTimedCache.getAll(Arrays.asList(0, 1, 2, 3));
+		assertEquals(pet[0], pets.get(0));
+		assertEquals(pet[1], pets.get(1));
+		assertEquals(third, pets.get(2));
+		assertFalse(pets.containsKey(3));
+		//only the missing ids must be queried, all at once
+		Mockito.verify(petRepository, Mockito.times(1)).findByIdIn(new LinkedHashSet<>(Arrays.asList(1, 2, 3)));
+		Mockito.verify(petRepository, Mockito.times(1)).findById(anyInt());
+
+		petTimedCache.getAll(Arrays.asList(1, 2));
+		//cache must HIT
+		Mockito.verify(petRepository, Mockito.times(1)).findByIdIn(anyCollection());
+	}
+
+	@Test
+	public void testGetAllAwaitsRunningSingleLoad() throws Exception {
+		CountDownLatch loadStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Mockito.when(petRepository.findById(0)).thenAnswer(invocation -> {
+			loadStarted.countDown();
+			release.await();
+			return pet[0];
+		});
+		Mockito.when(petRepository.findByIdIn(anyCollection())).thenReturn(Arrays.asList(pet[1]));
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		executor.submit(() -> petTimedCache.get(0));
+		loadStarted.await();
+		Future<Map<Integer, Pet>> pets = executor.submit(() -> petTimedCache.getAll(Arrays.asList(0, 1)));
+		//the batch must query pet 1 only, then wait for the running load of pet 0
+		Mockito.verify(petRepository, Mockito.timeout(1000)).findByIdIn(Collections.singleton(1));
+		release.countDown();
+		assertEquals(2, pets.get(10, TimeUnit.SECONDS).size());
+		executor.shutdown();
+
+		Mockito.verify(petRepository, Mockito.times(1)).findById(0);
+	}
+
+	@Test
+	public void testSnapshotWarmsNextCache(@TempDir Path snapshotDirectory) {
+		String snapshotFile = snapshotDirectory.resolve("pets.snapshot").toString();
+		petTimedCache.setSnapshotFile(snapshotFile);
+		petTimedCache.get(0);
+		petTimedCache.get(1);
+		petTimedCache.get(1);
+		petTimedCache.close();
+
+		PetTimedCache restartedCache = new PetTimedCache(60000, petRepository);
+		restartedCache.setSnapshotFile(snapshotFile);
+		Mockito.when(petRepository.findByIdIn(anyCollection())).thenReturn(Arrays.asList(pet[0], pet[1]));
+		restartedCache.warmUp();
+		//the hot keys must be prefetched with one query, the hottest first
+		Mockito.verify(petRepository).findByIdIn(prefetched.capture());
+		assertEquals(Arrays.asList(1, 0), new ArrayList<>(prefetched.getValue()));
+
+		restartedCache.get(0);
+		restartedCache.get(1);
+		//cache must HIT
+		Mockito.verify(petRepository, Mockito.times(2)).findById(anyInt());
+	}
+
+	@Test
+	public void testEntryExpiresExactlyAfterExpiry() {
+		petTimedCache.get(0);
+		ticker.advance(TimeUnit.MILLISECONDS.toNanos(expiryInMillis) - 1, TimeUnit.NANOSECONDS);
+		petTimedCache.get(0);
+		//cache must HIT
+		Mockito.verify(petRepository, Mockito.times(1)).findById(0);
+
+		ticker.advance(1, TimeUnit.NANOSECONDS);
+		petTimedCache.get(0);
+		//cache must MISS
+		Mockito.verify(petRepository, Mockito.times(2)).findById(0);
+	}
+
+	@Test
+	public void testEvictedPetsMoveToSecondTierAndBack() {
+		MapPetCacheTier secondTier = new MapPetCacheTier();
+		PetTimedCache boundedCache = new PetTimedCache(60000, petRepository, ticker);
+		boundedCache.setSecondTier(secondTier);
+		boundedCache.setMaximumSize(2);
+		Mockito.when(petRepository.findById(anyInt())).thenAnswer(invocation -> {
+			Pet loaded = new Pet();
+			loaded.setId(invocation.getArgument(0));
+			return loaded;
+		});
+		for (int id = 0; id < 10; id++) {
+			boundedCache.get(id);
+		}
+		assertEquals(2, boundedCache.size());
+		assertEquals(8, secondTier.pets.size());
+
+		Mockito.clearInvocations(petRepository);
+		List<Integer> demoted = new ArrayList<>(secondTier.pets.keySet());
+		for (Integer id : demoted) {
+			assertEquals(id, boundedCache.get(id).getId());
+		}
+		//demoted pets must come back from the second tier
+		Mockito.verify(petRepository, Mockito.never()).findById(anyInt());
+		//and every pet is held by one of the levels only
+		assertEquals(10, boundedCache.size() + secondTier.pets.size());
+	}
+
+	@Test
+	public void testGetAllPromotesFromSecondTier() {
+		MapPetCacheTier secondTier = new MapPetCacheTier();
+		petTimedCache.setSecondTier(secondTier);
+		secondTier.put(pet[1]);
+		Mockito.when(petRepository.findByIdIn(anyCollection())).thenReturn(Collections.emptyList());
+
+		Map<Integer, Pet> pets = petTimedCache.getAll(Arrays.asList(1, 2));
+		assertEquals(pet[1], pets.get(1));
+		assertFalse(secondTier.pets.containsKey(1));
+		//only the pet missing from both levels must be queried
+		Mockito.verify(petRepository, Mockito.times(1)).findByIdIn(Collections.singleton(2));
+	}
+
+	@Test
+	public void testSaveRemovesPetFromSecondTier() {
+		MapPetCacheTier secondTier = new MapPetCacheTier();
+		petTimedCache.setSecondTier(secondTier);
+		secondTier.put(pet[0]);
+		petTimedCache.save(pet[0]);
+		assertFalse(secondTier.pets.containsKey(0));
+
+		petTimedCache.get(0);
+		//cache must MISS in both levels
+		Mockito.verify(petRepository, Mockito.times(1)).findById(0);
+	}
+
+	@Test
+	public void testExpiredPetsAreNotDemoted() {
+		MapPetCacheTier secondTier = new MapPetCacheTier();
+		petTimedCache.setSecondTier(secondTier);
+		petTimedCache.get(0);
+		ticker.advance(2 * expiryInMillis, TimeUnit.MILLISECONDS);
+		petTimedCache.get(1);
+		assertEquals(0, secondTier.pets.size());
+	}
+
+	@Test
+	public void testMissingPetIsRememberedForNegativeExpiry() {
+		petTimedCache.setNegativeExpiryMillis(50);
+		assertNull(petTimedCache.get(5));
+		assertNull(petTimedCache.get(5));
+		assertTrue(petTimedCache.getAll(Arrays.asList(5)).isEmpty());
+		//cache must HIT the missing id
+		Mockito.verify(petRepository, Mockito.times(1)).findById(5);
+		Mockito.verify(petRepository, Mockito.never()).findByIdIn(anyCollection());
+
+		ticker.advance(50, TimeUnit.MILLISECONDS);
+		assertNull(petTimedCache.get(5));
+		//cache must MISS once the window is over
+		Mockito.verify(petRepository, Mockito.times(2)).findById(5);
+	}
+
+	@Test
+	public void testSaveForgetsMissingPet() {
+		petTimedCache.setNegativeExpiryMillis(60000);
+		assertNull(petTimedCache.get(5));
+		Pet created = new Pet();
+		created.setId(5);
+		petTimedCache.save(created);
+		Mockito.when(petRepository.findById(5)).thenReturn(created);
+		assertEquals(created, petTimedCache.get(5));
+	}
+
+	@Test
+	public void testGetAllRemembersMissingPets() {
+		petTimedCache.setNegativeExpiryMillis(60000);
+		Mockito.when(petRepository.findByIdIn(anyCollection())).thenReturn(Collections.emptyList());
+		assertTrue(petTimedCache.getAll(Arrays.asList(5, 6)).isEmpty());
+		assertNull(petTimedCache.get(5));
+		assertTrue(petTimedCache.getAll(Arrays.asList(5, 6)).isEmpty());
+		//cache must HIT both missing ids
+		Mockito.verify(petRepository, Mockito.times(1)).findByIdIn(anyCollection());
+		Mockito.verify(petRepository, Mockito.never()).findById(anyInt());
+	}
+
+	@Test
+	public void testMissingPetIdsAreBounded() {
+		petTimedCache.setNegativeExpiryMillis(60000);
+		petTimedCache.setNegativeMaximumSize(2);
+		for (int id = 5; id < 8; id++) {
+			petTimedCache.get(id);
+		}
+		petTimedCache.get(7);
+		petTimedCache.get(5);
+		//the least recently used id must be forgotten
+		Mockito.verify(petRepository, Mockito.times(1)).findById(7);
+		Mockito.verify(petRepository, Mockito.times(2)).findById(5);
+	}
+
 }
@@ -1,9 +1,20 @@
 package org.springframework.samples.petclinic.utility;
 
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.samples.petclinic.owner.PetRepository;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.mock;
@@ -30,4 +41,263 @@ class SimpleDITest {
 		});
 		assertNotNull(simpleDi.getInstanceOf(PetRepository.class));
 	}
+
+	@Test
+	public void testGetDIContainerReturnsOneContainer() {
+		assertSame(SimpleDI.getDIContainer(), SimpleDI.getDIContainer());
+	}
+
+	@Test
+	public void testProvideSingletonConstructsOnceForAllThreads() throws Exception {
+		MyDI diContainer = new MyDI();
+		AtomicInteger constructed = new AtomicInteger();
+		diContainer.provideSingleton(PetRepository.class, () -> {
+			constructed.incrementAndGet();
+			return mock(PetRepository.class);
+		});
+		int threads = 8;
+		CyclicBarrier start = new CyclicBarrier(threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> lookups = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				lookups.add(executor.submit(() -> {
+					start.await();
+					return diContainer.getInstanceOf(PetRepository.class);
+				}));
+			}
+			Object first = lookups.get(0).get(10, TimeUnit.SECONDS);
+			for (Future<Object> lookup : lookups) {
+				assertSame(first, lookup.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, constructed.get());
+		assertSame(diContainer.getInstanceOf(PetRepository.class), diContainer.getInstanceOf(PetRepository.class));
+	}
+
+	@Test
+	public void testLastRegistrationWins() throws Exception {
+		MyDI diContainer = new MyDI();
+		PetRepository petRepoMock = mock(PetRepository.class);
+		diContainer.provideByAConstructorFunction(PetRepository.class, () -> mock(PetRepository.class));
+		diContainer.provideByInstance(PetRepository.class, petRepoMock);
+		assertSame(petRepoMock, diContainer.getInstanceOf(PetRepository.class));
+		assertNull(diContainer.getInstanceOf(String.class));
+	}
+
+	@Test
+	public void testProvideByAutowiringResolvesConstructorParameters() throws Exception {
+		MyDI diContainer = new MyDI();
+		PetRepository petRepoMock = mock(PetRepository.class);
+		diContainer.provideByInstance(PetRepository.class, petRepoMock);
+		diContainer.provideByAutowiring(Clock.class, Clock.class);
+		diContainer.provideSingleton(Formatter.class, diContainer.autowired(Formatter.class));
+		diContainer.provideByAutowiring(Report.class, Report.class);
+		diContainer.provideByAutowiring(Summary.class, Summary.class);
+
+		Report report = (Report) diContainer.getInstanceOf(Report.class);
+		assertSame(petRepoMock, report.pets);
+		assertSame(diContainer.getInstanceOf(Formatter.class), report.formatter);
+		assertNotSame(report, diContainer.getInstanceOf(Report.class));
+		//more parameters than the generated functions take
+		Summary summary = (Summary) diContainer.getInstanceOf(Summary.class);
+		assertSame(report.formatter, summary.formatter);
+		assertNotSame(report.formatter.clock, summary.clock);
+		assertSame(diContainer.autowired(Report.class), diContainer.autowired(Report.class));
+	}
+
+	@Test
+	public void testAutowiringPicksAnnotatedConstructor() throws Exception {
+		MyDI diContainer = new MyDI();
+		diContainer.provideByAutowiring(Clock.class, Clock.class);
+		diContainer.provideByAutowiring(Formatter.class, Formatter.class);
+		assertNotNull(((Formatter) diContainer.getInstanceOf(Formatter.class)).clock);
+	}
+
+	@Test
+	public void testAutowiringFailsWithoutBinding() {
+		MyDI diContainer = new MyDI();
+		diContainer.provideByAutowiring(Formatter.class, Formatter.class);
+		assertThrows(IllegalStateException.class, () -> diContainer.getInstanceOf(Formatter.class));
+		assertThrows(IllegalArgumentException.class, () -> diContainer.provideByAutowiring(PetRepository.class, PetRepository.class));
+	}
+
+	@Test
+	public void testRegistrationClosingACycleIsRejected() throws Exception {
+		MyDI diContainer = new MyDI();
+		diContainer.provideByAutowiring(Summary.class, Summary.class);
+		diContainer.provideByAutowiring(Report.class, Report.class);
+		IllegalArgumentException cycle = assertThrows(IllegalArgumentException.class,
+			() -> diContainer.provideSingleton(Formatter.class, diContainer.autowired(Cyclic.class)));
+		assertEquals("Dependency cycle: " + Formatter.class.getName() + " -> " + Summary.class.getName() + " -> "
+			+ Formatter.class.getName(), cycle.getMessage());
+		//the rejected binding is not added
+		assertNull(diContainer.getInstanceOf(Formatter.class));
+	}
+
+	@Test
+	public void testInitializeSingletonsFailsOnMissingBindings() throws Exception {
+		MyDI diContainer = new MyDI();
+		AtomicInteger constructed = new AtomicInteger();
+		diContainer.provideSingleton(Clock.class, () -> {
+			constructed.incrementAndGet();
+			return new Clock();
+		});
+		diContainer.provideSingleton(Report.class, diContainer.autowired(Report.class));
+		IllegalStateException missing = assertThrows(IllegalStateException.class, diContainer::initializeSingletons);
+		assertTrue(missing.getMessage().contains(PetRepository.class.getName()));
+		assertTrue(missing.getMessage().contains(Formatter.class.getName()));
+		assertEquals(0, constructed.get());
+	}
+
+	@Test
+	public void testInitializeSingletonsOverlapsIndependentOnes() throws Exception {
+		MyDI diContainer = new MyDI();
+		//each of the two independent singletons can only be made while the other one is
+		CyclicBarrier bothStarted = new CyclicBarrier(2);
+		diContainer.provideSingleton(Clock.class, () -> {
+			bothStarted.await(10, TimeUnit.SECONDS);
+			Thread.sleep(50);
+			return new Clock();
+		});
+		PetRepository petRepoMock = mock(PetRepository.class);
+		diContainer.provideSingleton(PetRepository.class, () -> {
+			bothStarted.await(10, TimeUnit.SECONDS);
+			Thread.sleep(50);
+			return petRepoMock;
+		});
+		diContainer.provideSingleton(Formatter.class, diContainer.autowired(Formatter.class));
+		diContainer.provideSingleton(Report.class, diContainer.autowired(Report.class));
+		diContainer.provideByAutowiring(Summary.class, Summary.class);
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		MyDI.StartupReport report;
+		try {
+			report = diContainer.initializeSingletons(pool);
+		} finally {
+			pool.shutdown();
+		}
+		//the two slow singletons of the first layer were made at the same time, else the
+		//barrier would have timed out and initializeSingletons thrown its TimeoutException
+		assertEquals(4, report.getComponents().size());
+		MyDI.StartupReport.Component slowest = report.getComponents().get(0);
+		assertEquals(0, slowest.getLayer());
+		assertTrue(slowest.getConstructionNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+		for (MyDI.StartupReport.Component component : report.getComponents()) {
+			if (component.getType() == Report.class) {
+				assertEquals(2, component.getLayer());
+			}
+		}
+		assertTrue(report.toString().contains(Report.class.getName()));
+		//made already, so not made again
+		assertTrue(diContainer.initializeSingletons(ForkJoinPool.commonPool()).getComponents().isEmpty());
+	}
+
+	@Test
+	public void testThreadScopedInstancePerThread() throws Exception {
+		MyDI diContainer = new MyDI();
+		List<Object> disposed = new ArrayList<>();
+		diContainer.provideThreadScoped(StringBuilder.class, StringBuilder::new, disposed::add);
+		Object mine = diContainer.getInstanceOf(StringBuilder.class);
+		assertSame(mine, diContainer.getInstanceOf(StringBuilder.class));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Object other = executor.submit(() -> diContainer.getInstanceOf(StringBuilder.class)).get(10, TimeUnit.SECONDS);
+			assertNotSame(mine, other);
+		} finally {
+			executor.shutdownNow();
+		}
+		diContainer.closeThreadScope();
+		assertEquals(1, disposed.size());
+		assertSame(mine, disposed.get(0));
+		assertNotSame(mine, diContainer.getInstanceOf(StringBuilder.class));
+		diContainer.closeThreadScope();
+	}
+
+	@Test
+	public void testScopeDisposesInReverseOrder() throws Exception {
+		MyDI diContainer = new MyDI();
+		List<String> disposed = new ArrayList<>();
+		diContainer.provideScoped(Clock.class, Clock::new, clock -> disposed.add("clock"));
+		diContainer.provideScoped(Formatter.class, diContainer.autowired(Formatter.class), formatter -> disposed.add("formatter"));
+		assertThrows(IllegalStateException.class, () -> diContainer.getInstanceOf(Clock.class));
+
+		try (MyDI.Scope scope = diContainer.openScope()) {
+			Formatter formatter = (Formatter) diContainer.getInstanceOf(Formatter.class);
+			assertSame(formatter, diContainer.getInstanceOf(Formatter.class));
+			assertSame(formatter.clock, diContainer.getInstanceOf(Clock.class));
+			MyDI.Scope nested = diContainer.openScope();
+			assertNotSame(formatter, diContainer.getInstanceOf(Formatter.class));
+			//only the innermost scope can be closed
+			assertThrows(IllegalStateException.class, scope::close);
+			nested.close();
+			assertEquals(Arrays.asList("formatter", "clock"), disposed);
+			assertSame(formatter, diContainer.getInstanceOf(Formatter.class));
+		}
+		//the clock was made first, for the formatter, so it is disposed of last
+		assertEquals(Arrays.asList("formatter", "clock", "formatter", "clock"), disposed);
+		assertThrows(IllegalStateException.class, () -> diContainer.getInstanceOf(Clock.class));
+	}
+
+	@Test
+	public void testScopeClosesAutoCloseableInstances() throws Exception {
+		MyDI diContainer = new MyDI();
+		AtomicInteger closed = new AtomicInteger();
+		diContainer.provideScoped(AutoCloseable.class, () -> (AutoCloseable) closed::incrementAndGet);
+		MyDI.Scope scope = diContainer.openScope();
+		diContainer.getInstanceOf(AutoCloseable.class);
+		scope.close();
+		scope.close();
+		assertEquals(1, closed.get());
+	}
+
+	public static class Cyclic extends Formatter {
+
+		public Cyclic(Summary summary) {
+			super(summary.clock);
+		}
+	}
+
+	public static class Clock {
+	}
+
+	public static class Formatter {
+
+		final Clock clock;
+
+		public Formatter() {
+			this(null);
+		}
+
+		@Autowired
+		public Formatter(Clock clock) {
+			this.clock = clock;
+		}
+	}
+
+	public static class Report {
+
+		final PetRepository pets;
+		final Formatter formatter;
+
+		public Report(PetRepository pets, Formatter formatter) {
+			this.pets = pets;
+			this.formatter = formatter;
+		}
+	}
+
+	public static class Summary {
+
+		final Clock clock;
+		final Formatter formatter;
+		final Report report;
+
+		public Summary(Clock clock, Formatter formatter, Report report) {
+			this.clock = clock;
+			this.formatter = formatter;
+			this.report = report;
+		}
+	}
 }